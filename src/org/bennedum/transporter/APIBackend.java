@@ -15,7 +15,9 @@
  */
 package org.bennedum.transporter;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import org.bennedum.transporter.api.RemoteException;
@@ -113,6 +115,30 @@ public final class APIBackend {
             throw new RemoteException("unknown API target '%s'", target);
     }
     
+    // Invokes each call in turn and returns a result message for each one. A
+    // call that fails doesn't stop the rest.
+    public static List<Message> invokeAll(List<Message> calls) {
+        List<Message> results = new ArrayList<Message>(calls.size());
+        for (Message call : calls) {
+            Message out = new Message();
+            try {
+                if (call == null)
+                    throw new RemoteException("missing call");
+                String target = call.getString("target");
+                if (target == null)
+                    throw new RemoteException("missing target");
+                String method = call.getString("method");
+                if (method == null)
+                    throw new RemoteException("missing method");
+                invoke(target, method, call.getMessage("args"), out);
+            } catch (Throwable t) {
+                out.put("failure", t.getMessage());
+            }
+            results.add(out);
+        }
+        return results;
+    }
+    
     private static void invokeServerMethod(String method, Message args, Message out) throws TransporterException {
         org.bukkit.Server server = Global.plugin.getServer();
         if (method.equals("broadcast"))
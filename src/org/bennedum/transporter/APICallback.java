@@ -16,6 +16,7 @@
 package org.bennedum.transporter;
 
 import org.bennedum.transporter.api.Callback;
+import org.bennedum.transporter.net.Message;
 
 /**
  *
@@ -24,6 +25,10 @@ import org.bennedum.transporter.api.Callback;
 public abstract class APICallback<T> extends Callback<T> {
     
     private long requestId = 0;
+    private TimingWheel.Timeout timeout = null;
+    private String target = null;
+    private String method = null;
+    private Message args = null;
     
     public APICallback() {
         super();
@@ -36,5 +41,31 @@ public abstract class APICallback<T> extends Callback<T> {
     public void setRequestId(long rid) {
         requestId = rid;
     }
+
+    public TimingWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public Message getArgs() {
+        return args;
+    }
+
+    public void setCall(String target, String method, Message args) {
+        this.target = target;
+        this.method = method;
+        this.args = args;
+    }
     
 }
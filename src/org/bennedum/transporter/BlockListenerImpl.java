@@ -31,14 +31,18 @@ public class BlockListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.NORMAL)
     public void onBlockCanBuild(BlockCanBuildEvent event) {
-        LocalGateImpl gate = Gates.findGateForPortal(event.getBlock().getLocation());
+        GateMap.Hit hit = Gates.findGates(event.getBlock());
+        if (hit == null) return;
+        LocalGateImpl gate = hit.getGate(GateMap.PORTAL);
         if ((gate != null) && gate.isOpen())
             event.setBuildable(false);
     }
     
     @EventHandler(priority = EventPriority.NORMAL)
     public void onBlockDamage(BlockDamageEvent event) {
-        LocalGateImpl gate = Gates.findGateForProtection(event.getBlock().getLocation());
+        GateMap.Hit hit = Gates.findGates(event.getBlock());
+        if (hit == null) return;
+        LocalGateImpl gate = hit.getGate(GateMap.PROTECTION);
         if (gate != null) {
             event.setCancelled(true);
             gate.onProtect(event.getBlock().getLocation());
@@ -47,13 +51,15 @@ public class BlockListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.NORMAL)
     public void onBlockBreak(BlockBreakEvent event) {
-        LocalGateImpl gate = Gates.findGateForProtection(event.getBlock().getLocation());
+        GateMap.Hit hit = Gates.findGates(event.getBlock());
+        if (hit == null) return;
+        LocalGateImpl gate = hit.getGate(GateMap.PROTECTION);
         if (gate != null) {
             event.setCancelled(true);
             gate.onProtect(event.getBlock().getLocation());
             return;
         }
-        gate = Gates.findGateForScreen(event.getBlock().getLocation());
+        gate = hit.getGate(GateMap.SCREEN);
         if (gate != null) {
             Context ctx = new Context(event.getPlayer());
             try {
@@ -71,8 +77,8 @@ public class BlockListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onSignChange(SignChangeEvent event) {
         Block block = event.getBlock();
-        LocalGateImpl gate = Gates.findGateForScreen(block.getLocation());
-        if (gate != null) return;
+        GateMap.Hit hit = Gates.findGates(block);
+        if ((hit != null) && hit.has(GateMap.SCREEN)) return;
         Context ctx = new Context(event.getPlayer());
         String gateName = null;
         String link = null;
@@ -93,7 +99,7 @@ public class BlockListenerImpl implements Listener {
             Permissions.require(ctx.getPlayer(), "trp.create." + match.design.getName());
             Economy.requireFunds(ctx.getPlayer(), match.design.getCreateCost());
             
-            gate = match.design.create(match, ctx.getPlayer().getName(), gateName);
+            LocalGateImpl gate = match.design.create(match, ctx.getPlayer().getName(), gateName);
             Gates.add(gate, true);
             ctx.sendLog("created gate '%s'", gate.getName());
             Gates.setSelectedGate(ctx.getPlayer(), gate);
@@ -115,15 +121,17 @@ public class BlockListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.NORMAL)
     public void onBlockFromTo(BlockFromToEvent event) {
         // This prevents liquid portals from flowing out
-        LocalGateImpl gate = Gates.findGateForPortal(event.getBlock().getLocation());
-        if (gate != null) {
+        GateMap.Hit hit = Gates.findGates(event.getBlock());
+        if ((hit != null) && hit.has(GateMap.PORTAL)) {
             event.setCancelled(true);
         }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onBlockRedstone(BlockRedstoneEvent event) {
-        LocalGateImpl g = Gates.findGateForTrigger(event.getBlock().getLocation());
+        GateMap.Hit hit = Gates.findGates(event.getBlock());
+        if (hit == null) return;
+        LocalGateImpl g = hit.getGate(GateMap.TRIGGER);
         if (! (g instanceof LocalBlockGateImpl)) return;
         LocalBlockGateImpl gate = (LocalBlockGateImpl)g;
         if (gate != null) {
@@ -158,7 +166,7 @@ public class BlockListenerImpl implements Listener {
             return;
         }
         
-        g = Gates.findGateForSwitch(event.getBlock().getLocation());
+        g = hit.getGate(GateMap.SWITCH);
         if (! (g instanceof LocalBlockGateImpl)) return;
         gate = (LocalBlockGateImpl)g;
         
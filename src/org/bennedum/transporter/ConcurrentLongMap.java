@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter;
+
+/**
+ * Thread safe map from primitive longs to values.
+ * <p>
+ * Keys are spread over a fixed number of independently locked segments, each
+ * an open addressing table with linear probing, so there's no boxing and
+ * no entry objects for each mapping.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class ConcurrentLongMap<V> {
+
+    private static final int SEGMENTS = 16;     // must be a power of 2
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public ConcurrentLongMap() {
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V)segmentFor(key).get(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("value is required");
+        return (V)segmentFor(key).put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        return (V)segmentFor(key).remove(key);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private Segment segmentFor(long key) {
+        return segments[(hash(key) >>> 28) & (SEGMENTS - 1)];
+    }
+
+    private static final class Segment {
+
+        private long[] keys = new long[16];
+        private Object[] values = new Object[16];
+        private int size = 0;
+
+        synchronized Object get(long key) {
+            int i = indexOf(key);
+            return (i == -1) ? null : values[i];
+        }
+
+        synchronized Object put(long key, Object value) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    Object old = values[i];
+                    values[i] = value;
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size > (keys.length * 3 / 4))
+                resize();
+            return null;
+        }
+
+        synchronized Object remove(long key) {
+            int i = indexOf(key);
+            if (i == -1) return null;
+            Object old = values[i];
+            values[i] = null;
+            size--;
+            // shift back the rest of the run so lookups don't stop early
+            int mask = keys.length - 1;
+            int j = (i + 1) & mask;
+            while (values[j] != null) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = null;
+                    i = j;
+                }
+                j = (j + 1) & mask;
+            }
+            return old;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            keys = new long[16];
+            values = new Object[16];
+            size = 0;
+        }
+
+        private int indexOf(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (values[i] != null) {
+                if (keys[i] == key) return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldValues[k] == null) continue;
+                int i = hash(oldKeys[k]) & mask;
+                while (values[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[k];
+                values[i] = oldValues[k];
+            }
+        }
+
+    }
+
+}
@@ -153,6 +153,12 @@ public final class Config {
             ctx.sendLog("saved configuration");
     }
 
+    // Uses the given configuration instead of the config file, for running
+    // the network code outside of a server.
+    public static void setConfiguration(Configuration c) {
+        config = c;
+    }
+
     public static String getStringDirect(String path) {
         return config.getString(path, null);
     }
@@ -15,64 +15,187 @@
  */
 package org.bennedum.transporter;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import org.bukkit.Location;
 import org.bukkit.World;
 
 /**
+ * Spatial index of gate volumes.
+ * <p>
+ * Every volume is tagged with the roles it plays for its gate (portal,
+ * protection, screen, switch or trigger), so one index answers all of them.
+ * A lookup can ask for a single role, or for every role at once.
+ * </p>
  *
  * @author frdfsnlght <frdfsnlght@gmail.com>
  */
 public final class GateMap {
     
+    public static final int PORTAL = 1;
+    public static final int PROTECTION = 2;
+    public static final int SCREEN = 4;
+    public static final int SWITCH = 8;
+    public static final int TRIGGER = 16;
+    public static final int ALL_ROLES = PORTAL | PROTECTION | SCREEN | SWITCH | TRIGGER;
+    
+    private static final int ROLE_COUNT = 5;
+    
+    // volumes spanning more chunks than this aren't worth spreading over the
+    // grid and are checked on every lookup instead
+    private static final int MAX_VOLUME_CHUNKS = 256;
+
     private Map<World,WorldMap> worlds = new HashMap<World,WorldMap>();
+    private List<Volume> pending = null;
     
     public GateMap() {}
 
+    public void put(Volume volume, int roles) {
+        volume.roles = roles;
+        put(volume);
+    }
+    
+    // Files the volume under the roles it's already tagged with.
     public void put(Volume volume) {
-        World world = volume.getWorld();
-        if (! worlds.containsKey(world))
-            worlds.put(world, new WorldMap());
-        worlds.get(world).add(volume);
+        if (pending != null) {
+            pending.add(volume);
+            return;
+        }
+        getWorldMap(volume.getWorld()).add(volume);
+    }
+    
+    public void putAll(Collection<Volume> volumes) {
+        Map<World,List<Volume>> byWorld = new HashMap<World,List<Volume>>();
+        for (Volume volume : volumes) {
+            List<Volume> vols = byWorld.get(volume.getWorld());
+            if (vols == null) {
+                vols = new ArrayList<Volume>();
+                byWorld.put(volume.getWorld(), vols);
+            }
+            vols.add(volume);
+        }
+        for (World world : byWorld.keySet())
+            getWorldMap(world).addAll(byWorld.get(world));
+    }
+    
+    // Volumes put between startBulkLoad and finishBulkLoad are indexed all
+    // at once at the end.
+    public void startBulkLoad() {
+        if (pending == null)
+            pending = new ArrayList<Volume>();
+    }
+    
+    public void finishBulkLoad() {
+        if (pending == null) return;
+        List<Volume> vols = pending;
+        pending = null;
+        putAll(vols);
     }
     
     public LocalGateImpl getGate(Location location) {
-        World world = location.getWorld();
+        return getGate(location, ALL_ROLES);
+    }
+
+    public LocalGateImpl getGate(Location location, int roles) {
+        return getGate(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), roles);
+    }
+
+    public LocalGateImpl getGate(World world, int x, int y, int z) {
+        return getGate(world, x, y, z, ALL_ROLES);
+    }
+    
+    // Returns the gate with a volume playing any of the roles at the block.
+    // Doesn't allocate anything.
+    public LocalGateImpl getGate(World world, int x, int y, int z, int roles) {
+        finishBulkLoad();
+        WorldMap wmap = worlds.get(world);
+        if (wmap == null) return null;
+        return wmap.getGate(x, y, z, roles);
+    }
+    
+    // Returns every role played at the block, or null if there aren't any,
+    // which is the usual case and doesn't allocate anything.
+    public Hit find(World world, int x, int y, int z) {
+        finishBulkLoad();
         WorldMap wmap = worlds.get(world);
         if (wmap == null) return null;
-        VolumeNode node = wmap.getNode(location);
-        if (node == null) return null;
-        return node.getGate(location);
+        return wmap.find(x, y, z);
     }
 
     public void removeGate(LocalGateImpl gate) {
+        removeGate(gate, ALL_ROLES);
+    }
+
+    // Removes the gate's volumes that play any of the roles.
+    public void removeGate(LocalGateImpl gate, int roles) {
+        finishBulkLoad();
         World world = gate.getWorld();
         if (worlds.containsKey(world))
-            worlds.get(world).removeGate(gate);
+            worlds.get(world).removeGate(gate, roles);
     }
 
     public void removeWorld(World world) {
+        finishBulkLoad();
         worlds.remove(world);
     }
     
     public int size() {
-        int count = 0;
+        int count = (pending == null) ? 0 : pending.size();
         for (WorldMap wmap : worlds.values())
             count+= wmap.size();
         return count;
     }
     
-    public int nodeCount() {
+    public int chunkCount() {
         int count = 0;
         for (WorldMap wmap : worlds.values())
-            count+= wmap.nodeCount();
+            count+= wmap.chunkCount();
         return count;
     }
     
+    private WorldMap getWorldMap(World world) {
+        WorldMap wmap = worlds.get(world);
+        if (wmap == null) {
+            wmap = new WorldMap();
+            worlds.put(world, wmap);
+        }
+        return wmap;
+    }
+    
+    private static long chunkKey(int cx, int cz) {
+        return ((long)cx << 32) | (cz & 0xffffffffL);
+    }
+    
+    // The gates playing each role at one block. The first volume found for a
+    // role keeps it.
+    public static final class Hit {
+        private int roles = 0;
+        private final LocalGateImpl[] gates = new LocalGateImpl[ROLE_COUNT];
+        private Hit() {}
+        public int getRoles() { return roles; }
+        public boolean has(int role) { return (roles & role) != 0; }
+        // role must be a single role
+        public LocalGateImpl getGate(int role) {
+            return gates[Integer.numberOfTrailingZeros(role)];
+        }
+        private void add(Volume volume) {
+            int newRoles = volume.roles & ~roles;
+            if (newRoles == 0) return;
+            roles |= newRoles;
+            for (int i = 0; i < ROLE_COUNT; i++)
+                if ((newRoles & (1 << i)) != 0) gates[i] = volume.gate;
+        }
+        static Hit collect(Hit hit, Volume volume) {
+            if (hit == null) hit = new Hit();
+            hit.add(volume);
+            return hit;
+        }
+    }
+    
     public static final class Point {
         int x, y, z;
         public Point() {}
@@ -92,6 +215,20 @@ public final class GateMap {
         public Location toLocation(World world) {
             return new Location(world, x, y, z);
         }
+        // Packs block coordinates into a long: 26 bits each for x and z and
+        // 12 bits for y, which covers the whole world.
+        public static long pack(int x, int y, int z) {
+            return ((long)(x & 0x3FFFFFF) << 38) | ((long)(z & 0x3FFFFFF) << 12) | (long)(y & 0xFFF);
+        }
+        public static int unpackX(long p) {
+            return (int)(p >> 38);
+        }
+        public static int unpackY(long p) {
+            return (int)((p << 52) >> 52);
+        }
+        public static int unpackZ(long p) {
+            return (int)((p << 26) >> 38);
+        }
         @Override
         public boolean equals(Object o) {
             if (! (o instanceof Point)) return false;
@@ -100,7 +237,7 @@ public final class GateMap {
         }
         @Override
         public int hashCode() {
-            return x + y + x;
+            return (((x * 31) + y) * 31) + z;
         }
         @Override
         public String toString() {
@@ -148,65 +285,271 @@ public final class GateMap {
         public int sizeX() { return max.x - min.x; }
         public int sizeY() { return max.y - min.y; }
         public int sizeZ() { return max.z - min.z; }
-        public Bounds trim(Point p, int quad) {
-            switch (quad) {
-                case 0:
-                    if ((min.x >= p.x) || (min.z >= p.z)) return null;
-                    return new Bounds(min, new Point(Math.min(max.x, p.x - 1), max.y, Math.min(max.z, p.z - 1)));
-                case 1:
-                    if ((min.x >= p.x) || (max.z < p.z)) return null;
-                    return new Bounds(new Point(min.x, min.y, max.z), new Point(Math.min(max.x, p.x - 1), max.y, Math.max(min.z, p.z)));
-                case 2:
-                    if ((max.x < p.x) || (min.z >= p.z)) return null;
-                    return new Bounds(new Point(Math.max(min.x, p.x), min.y, Math.min(max.z, p.z - 1)), new Point(max.x, max.y, min.z));
-                case 3:
-                    if ((max.x < p.x) || (max.z < p.z)) return null;
-                    return new Bounds(max, new Point(Math.max(min.x, p.x), min.y, Math.max(min.z, p.z)));
-                default:
-                    return null;
-            }
-        }
         @Override
         public String toString() {
             return "[" + min + "," + max + "]";
         }
     }
     
-    private class WorldMap {
+    // Volumes are filed under every 16x16 chunk column their bounds touch,
+    // so adding or removing a gate only touches the chunks it covers. Most
+    // lookups land in a chunk without any gates, which costs a single probe.
+    private final class WorldMap {
         
-        private Set<Volume> volumes = new HashSet<Volume>();
-        private VolumeNode root = null;
+        private LongMap<Chunk> chunks = new LongMap<Chunk>();
+        private List<Volume> large = new ArrayList<Volume>();
+        private Map<LocalGateImpl,List<Volume>> gates = new HashMap<LocalGateImpl,List<Volume>>();
+        private int volumeCount = 0;
         
         void add(Volume volume) {
-            volumes.add(volume);
-            recalculate();
+            List<Volume> vols = gates.get(volume.getGate());
+            if (vols == null) {
+                vols = new ArrayList<Volume>(2);
+                gates.put(volume.getGate(), vols);
+            }
+            vols.add(volume);
+            volumeCount++;
+            Bounds b = volume.getBounds();
+            int minCX = b.min.x >> 4, maxCX = b.max.x >> 4;
+            int minCZ = b.min.z >> 4, maxCZ = b.max.z >> 4;
+            if (((long)(maxCX - minCX + 1) * (maxCZ - minCZ + 1)) > MAX_VOLUME_CHUNKS) {
+                large.add(volume);
+                return;
+            }
+            int spanZ = maxCZ - minCZ + 1;
+            long[][] split = (volume.points == null) ? null : splitPoints(volume.points, minCX, minCZ, (maxCX - minCX + 1) * spanZ, spanZ);
+            for (int cx = minCX; cx <= maxCX; cx++)
+                for (int cz = minCZ; cz <= maxCZ; cz++) {
+                    long[] points = null;
+                    if (split != null) {
+                        points = split[((cx - minCX) * spanZ) + (cz - minCZ)];
+                        if (points == null) continue;
+                    }
+                    long key = chunkKey(cx, cz);
+                    Chunk chunk = chunks.get(key);
+                    if (chunk == null) {
+                        chunk = new Chunk();
+                        chunks.put(key, chunk);
+                    }
+                    chunk.add(volume, points);
+                }
+        }
+        
+        // Splits a point volume's packed points up by the chunk they fall
+        // in, indexed by chunk offset from the volume's minimum chunk. Chunks
+        // without any points get null.
+        private long[][] splitPoints(LongSet points, int minCX, int minCZ, int chunkCount, int spanZ) {
+            long[] all = points.toArray();
+            int[] counts = new int[chunkCount];
+            for (long p : all)
+                counts[(((Point.unpackX(p) >> 4) - minCX) * spanZ) + ((Point.unpackZ(p) >> 4) - minCZ)]++;
+            long[][] split = new long[counts.length][];
+            for (int i = 0; i < counts.length; i++)
+                if (counts[i] != 0) split[i] = new long[counts[i]];
+            for (long p : all) {
+                int i = (((Point.unpackX(p) >> 4) - minCX) * spanZ) + ((Point.unpackZ(p) >> 4) - minCZ);
+                split[i][split[i].length - counts[i]--] = p;
+            }
+            return split;
         }
         
-        VolumeNode getNode(Location loc) {
-            if (root == null) return null;
-            return root.getNode(loc);
+        void addAll(List<Volume> volumes) {
+            if (chunks.isEmpty()) {
+                // size the grid up front rather than growing it a gate at a time
+                int count = 0;
+                for (Volume volume : volumes) {
+                    Bounds b = volume.getBounds();
+                    long span = (long)((b.max.x >> 4) - (b.min.x >> 4) + 1) * ((b.max.z >> 4) - (b.min.z >> 4) + 1);
+                    if (span <= MAX_VOLUME_CHUNKS) count += span;
+                }
+                chunks = new LongMap<Chunk>(count);
+            }
+            for (Volume volume : volumes)
+                add(volume);
         }
         
-        void removeGate(LocalGateImpl gate) {
-            for (Iterator<Volume> i = volumes.iterator(); i.hasNext(); )
-                if (i.next().getGate() == gate)
-                    i.remove();
-            recalculate();
+        LocalGateImpl getGate(int x, int y, int z, int roles) {
+            Chunk chunk = chunks.get(chunkKey(x >> 4, z >> 4));
+            if (chunk != null) {
+                LocalGateImpl gate = chunk.getGate(x, y, z, roles);
+                if (gate != null) return gate;
+            }
+            if (large.isEmpty()) return null;
+            for (Volume vol : large)
+                if (((vol.roles & roles) != 0) && vol.contains(x, y, z)) return vol.gate;
+            return null;
+        }
+        
+        Hit find(int x, int y, int z) {
+            Hit hit = null;
+            Chunk chunk = chunks.get(chunkKey(x >> 4, z >> 4));
+            if (chunk != null)
+                hit = chunk.find(x, y, z, hit);
+            if (large.isEmpty()) return hit;
+            for (Volume vol : large)
+                if (vol.contains(x, y, z)) hit = Hit.collect(hit, vol);
+            return hit;
+        }
+        
+        void removeGate(LocalGateImpl gate, int roles) {
+            List<Volume> gateVols = gates.get(gate);
+            if (gateVols == null) return;
+            List<Volume> vols = new ArrayList<Volume>(gateVols.size());
+            for (Iterator<Volume> i = gateVols.iterator(); i.hasNext(); ) {
+                Volume volume = i.next();
+                if ((volume.roles & roles) == 0) continue;
+                vols.add(volume);
+                i.remove();
+            }
+            if (gateVols.isEmpty()) gates.remove(gate);
+            for (Volume volume : vols) {
+                volumeCount--;
+                if (large.remove(volume)) continue;
+                Bounds b = volume.getBounds();
+                for (int cx = b.min.x >> 4; cx <= (b.max.x >> 4); cx++)
+                    for (int cz = b.min.z >> 4; cz <= (b.max.z >> 4); cz++) {
+                        long key = chunkKey(cx, cz);
+                        Chunk chunk = chunks.get(key);
+                        if (chunk == null) continue;
+                        chunk.remove(volume);
+                        if (chunk.isEmpty()) chunks.remove(key);
+                    }
+            }
         }
         
         int size() {
-            return volumes.size();
+            return volumeCount;
         }
 
-        int nodeCount() {
-            if (root == null) return 0;
-            return root.nodeCount();
+        int chunkCount() {
+            return chunks.size();
         }
         
-        private void recalculate() {
-            if (root != null) root.destroy();
-            if ((volumes == null) || volumes.isEmpty()) return;
-            root = new VolumeNode(null, volumes);
+    }
+    
+    // The volumes touching one chunk column. Point volumes come with just
+    // their points that fall in the chunk, which are kept in a small open
+    // addressing table keyed by their packed position within the chunk, with
+    // an entry for every volume at the block, and box volumes are checked in
+    // turn. Both are rebuilt on the first lookup after a change.
+    private static final class Chunk {
+        
+        private final List<Volume> volumes = new ArrayList<Volume>(2);
+        private final List<long[]> volumePoints = new ArrayList<long[]>(2);
+        private boolean dirty = true;
+        private int roles = 0;
+        private Volume[] boxes = null;
+        private int[] blockKeys = null;
+        private Volume[] blockVolumes = null;
+        
+        // points are the volume's packed points in this chunk, or null for
+        // a box volume
+        void add(Volume volume, long[] points) {
+            volumes.add(volume);
+            volumePoints.add(points);
+            dirty = true;
+        }
+        
+        void remove(Volume volume) {
+            for (int i = volumes.size() - 1; i >= 0; i--)
+                if (volumes.get(i) == volume) {
+                    volumes.remove(i);
+                    volumePoints.remove(i);
+                }
+            dirty = true;
+        }
+        
+        boolean isEmpty() {
+            return volumes.isEmpty();
+        }
+        
+        LocalGateImpl getGate(int x, int y, int z, int roles) {
+            if (dirty) rebuild();
+            if ((this.roles & roles) == 0) return null;
+            if (blockKeys != null) {
+                int key = blockKey(x, y, z);
+                int mask = blockKeys.length - 1;
+                int i = blockHash(key) & mask;
+                Volume vol;
+                while ((vol = blockVolumes[i]) != null) {
+                    if ((blockKeys[i] == key) && ((vol.roles & roles) != 0)) return vol.gate;
+                    i = (i + 1) & mask;
+                }
+            }
+            if (boxes != null)
+                for (Volume vol : boxes)
+                    if (((vol.roles & roles) != 0) && vol.contains(x, y, z)) return vol.gate;
+            return null;
+        }
+        
+        Hit find(int x, int y, int z, Hit hit) {
+            if (dirty) rebuild();
+            if (blockKeys != null) {
+                int key = blockKey(x, y, z);
+                int mask = blockKeys.length - 1;
+                int i = blockHash(key) & mask;
+                Volume vol;
+                while ((vol = blockVolumes[i]) != null) {
+                    if (blockKeys[i] == key) hit = Hit.collect(hit, vol);
+                    i = (i + 1) & mask;
+                }
+            }
+            if (boxes != null)
+                for (Volume vol : boxes)
+                    if (vol.contains(x, y, z)) hit = Hit.collect(hit, vol);
+            return hit;
+        }
+        
+        private void rebuild() {
+            dirty = false;
+            roles = 0;
+            List<Volume> boxList = new ArrayList<Volume>();
+            int blockCount = 0;
+            for (int v = 0; v < volumes.size(); v++) {
+                Volume vol = volumes.get(v);
+                roles |= vol.roles;
+                long[] points = volumePoints.get(v);
+                if (points == null)
+                    boxList.add(vol);
+                else
+                    blockCount += points.length;
+            }
+            boxes = boxList.isEmpty() ? null : boxList.toArray(new Volume[boxList.size()]);
+            if (blockCount == 0) {
+                blockKeys = null;
+                blockVolumes = null;
+                return;
+            }
+            int capacity = 8;
+            while (capacity < (blockCount * 2))
+                capacity *= 2;
+            blockKeys = new int[capacity];
+            blockVolumes = new Volume[capacity];
+            int mask = capacity - 1;
+            for (int v = 0; v < volumes.size(); v++) {
+                long[] points = volumePoints.get(v);
+                if (points == null) continue;
+                Volume vol = volumes.get(v);
+                for (long p : points) {
+                    int key = blockKey(Point.unpackX(p), Point.unpackY(p), Point.unpackZ(p));
+                    int i = blockHash(key) & mask;
+                    // later volumes at the same block land further along
+                    // the probe sequence, so the first one is found first
+                    while (blockVolumes[i] != null)
+                        i = (i + 1) & mask;
+                    blockKeys[i] = key;
+                    blockVolumes[i] = vol;
+                }
+            }
+        }
+        
+        private static int blockKey(int x, int y, int z) {
+            return (y << 8) | ((x & 15) << 4) | (z & 15);
+        }
+        
+        private static int blockHash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
         }
         
     }
@@ -214,22 +557,30 @@ public final class GateMap {
     public static final class Volume {
         protected LocalGateImpl gate;
         protected Bounds bounds = new Bounds();
-        protected Set<Point> points = null;
+        protected LongSet points = null;
+        protected int roles = ALL_ROLES;
         public Volume(LocalGateImpl gate) {
             this.gate = gate;
         }
         public World getWorld() { return gate.getWorld(); }
         public Bounds getBounds() { return bounds; }
         public LocalGateImpl getGate() { return gate; }
+        public int getRoles() { return roles; }
         public void addPoint(Point p) {
+            addPoint(p.x, p.y, p.z);
+        }
+        public void addPoint(int x, int y, int z) {
             if (points == null) {
-                points = new HashSet<Point>();
-                points.add(p);
-                bounds.set(p);
+                points = new LongSet();
+                bounds.min.x = bounds.max.x = x;
+                bounds.min.y = bounds.max.y = y;
+                bounds.min.z = bounds.max.z = z;
             } else {
-                points.add(p);
-                bounds.expand(p);
+                if (x < bounds.min.x) bounds.min.x = x; else if (x > bounds.max.x) bounds.max.x = x;
+                if (y < bounds.min.y) bounds.min.y = y; else if (y > bounds.max.y) bounds.max.y = y;
+                if (z < bounds.min.z) bounds.min.z = z; else if (z > bounds.max.z) bounds.max.z = z;
             }
+            points.add(Point.pack(x, y, z));
         }
         public void setBounds(Bounds b) {
             bounds.min = b.min;
@@ -239,72 +590,15 @@ public final class GateMap {
             bounds.set(p1);
             bounds.expand(p2);
         }
+        boolean contains(int x, int y, int z) {
+            if ((x < bounds.min.x) || (x > bounds.max.x) ||
+                (z < bounds.min.z) || (z > bounds.max.z) ||
+                (y < bounds.min.y) || (y > bounds.max.y)) return false;
+            if (points == null) return true;
+            return points.contains(Point.pack(x, y, z));
+        }
         public boolean contains(Location loc) {
-            Point lp = new Point(loc);
-            if (points == null) {
-                if (bounds.contains(loc)) {
-                    return true;
-                }
-                return false;
-            }
-            for (Point p : points)
-                if (p.equals(lp)) {
-                    return true;
-                }
-            return false;
-        }
-        public Volume[] split(Point center) {
-            Volume[] vols = new Volume[4];
-            // check if we're completely in a quad
-            if (bounds.max.x < center.x) {
-                if (bounds.max.z < center.z) {
-                    vols[0] = this;
-                    return vols;
-                }
-                if (bounds.min.z >= center.z) {
-                    vols[1] = this;
-                    return vols;
-                }
-            } else if (bounds.min.x >= center.x) {
-                if (bounds.max.z < center.z) {
-                    vols[2] = this;
-                    return vols;
-                }
-                if (bounds.min.z >= center.z) {
-                    vols[3] = this;
-                    return vols;
-                }
-            }
-            
-            if (points == null) {
-                for (int quad = 0; quad < 4; quad++) {
-                    Bounds b = bounds.trim(center, quad);
-                    if (b == null) continue;
-                    vols[quad] = new Volume(gate);
-                    vols[quad].setBounds(b);
-                }
-                    
-            } else {
-                for (Point p : points)
-                    if (p.x < center.x) {
-                        if (p.z < center.z) {
-                            if (vols[0] == null) vols[0] = new Volume(gate);
-                            vols[0].addPoint(p);
-                        } else {
-                            if (vols[1] == null) vols[1] = new Volume(gate);
-                            vols[1].addPoint(p);
-                        }
-                    } else {
-                        if (p.z < center.z) {
-                            if (vols[2] == null) vols[2] = new Volume(gate);
-                            vols[2].addPoint(p);
-                        } else {
-                            if (vols[3] == null) vols[3] = new Volume(gate);
-                            vols[3].addPoint(p);
-                        }
-                    }
-            }
-            return vols;
+            return contains(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
         }
         @Override
         public String toString() {
@@ -326,101 +620,4 @@ public final class GateMap {
         }
     }
     
-    private final class VolumeNode {
-        private static final int LEAF_SIZE = 16;
-        VolumeNode parent = null;
-        Point center;
-        Bounds bounds;
-        VolumeNode[] children = null;
-        Set<Volume> volumes = null;
-        VolumeNode(VolumeNode parent, Set<Volume> volumes) {
-            this.parent = parent;
-            center = new Point();
-            
-            // find the center
-            for (Volume vol : volumes) {
-                center.x += vol.bounds.min.x + vol.bounds.max.x;
-                center.y += vol.bounds.min.y + vol.bounds.max.y;
-                center.z += vol.bounds.min.z + vol.bounds.max.z;
-            }
-            center.x = center.x / (volumes.size() * 2);
-            center.y = center.y / (volumes.size() * 2);
-            center.z = center.z / (volumes.size() * 2);
-
-            bounds = new Bounds();
-            bounds.set(center);
-            Set<Volume> vols0 = new HashSet<Volume>();
-            Set<Volume> vols1 = new HashSet<Volume>();
-            Set<Volume> vols2 = new HashSet<Volume>();
-            Set<Volume> vols3 = new HashSet<Volume>();
-            
-            // find bounds and create quads
-            for (Volume vol : volumes) {
-                bounds.expand(vol.bounds);
-                Volume[] vols = vol.split(center);
-                if (vols[0] != null) vols0.add(vols[0]);
-                if (vols[1] != null) vols1.add(vols[1]);
-                if (vols[2] != null) vols2.add(vols[2]);
-                if (vols[3] != null) vols3.add(vols[3]);
-            }
-            
-            // limit tree growth
-            if ((bounds.sizeX() <= LEAF_SIZE) &&
-                (bounds.sizeZ() <= LEAF_SIZE)) {
-                this.volumes = volumes;
-                return;
-            }
-
-            children = new VolumeNode[4];
-            if (! vols0.isEmpty()) children[0] = new VolumeNode(this, vols0);
-            if (! vols1.isEmpty()) children[1] = new VolumeNode(this, vols1);
-            if (! vols2.isEmpty()) children[2] = new VolumeNode(this, vols2);
-            if (! vols3.isEmpty()) children[3] = new VolumeNode(this, vols3);
-            
-        }
-        void destroy() {
-            volumes = null;
-            parent = null;
-            if (children != null) {
-                for (int i = 0; i < 4; i++)
-                    if (children[i] != null) children[i].destroy();
-                children = null;
-            }
-        }
-        int nodeCount() {
-            if (children == null) return 1;
-            int count = 1;
-            for (VolumeNode child : children)
-                if (child != null) count += child.nodeCount();
-            return count;
-        }
-        LocalGateImpl getGate(Location loc) {
-            if ((children != null) || (volumes == null)) return null;
-            for (Volume vol : volumes)
-                if (vol.contains(loc)) return vol.gate;
-            return null;
-        }
-        VolumeNode getNode(Location loc) {
-            if (! bounds.contains(loc)) return null;
-            if (children == null) return this;
-            if (loc.getBlockX() < center.x) {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[0] == null) return null;
-                    return children[0].getNode(loc);
-                } else {
-                    if (children[1] == null) return null;
-                    return children[1].getNode(loc);
-                }
-            } else {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[2] == null) return null;
-                    return children[2].getNode(loc);
-                } else {
-                    if (children[3] == null) return null;
-                    return children[3].getNode(loc);
-                }
-            }
-        }
-    }
-    
 }
@@ -28,6 +28,7 @@ import org.bennedum.transporter.api.event.LocalGateCreateEvent;
 import org.bennedum.transporter.api.event.LocalGateDestroyEvent;
 import org.bukkit.Location;
 import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 
 /**
@@ -37,20 +38,9 @@ import org.bukkit.entity.Player;
  */
 public final class Gates {
 
-    // Gate build blocks that are protected
-    private static final GateMap protectionMap = new GateMap();
-
-    // Portal blocks for open, local gates
-    private static final GateMap portalMap = new GateMap();
-
-    // Gate screens for local gates
-    private static final GateMap screenMap = new GateMap();
-
-    // Gate switches for local gates
-    private static final GateMap switchMap = new GateMap();
-
-    // Gate triggers for local gates
-    private static final GateMap triggerMap = new GateMap();
+    // Volumes of local gates: protected build blocks, portal blocks of open
+    // gates, screens, switches and triggers, each tagged with its role
+    private static final GateMap gateMap = new GateMap();
 
     // Indexed by full name
     private static final Map<String,GateImpl> gates = new HashMap<String,GateImpl>();
@@ -71,21 +61,27 @@ public final class Gates {
             return 0;
         }
         int loadedCount = 0;
-        for (File gateFile : Utils.listYAMLFiles(gatesFolder)) {
-            try {
-                LocalGateImpl gate = LocalGateImpl.load(world, gateFile);
+        // the volumes of gates loaded in bulk are indexed all at once
+        gateMap.startBulkLoad();
+        try {
+            for (File gateFile : Utils.listYAMLFiles(gatesFolder)) {
                 try {
-                    add(gate, false);
-                    ctx.sendLog("loaded gate '%s' for world '%s'", gate.getName(), world.getName());
-                    loadedCount++;
-                } catch (GateException ee) {
-                    ctx.warnLog("unable to load gate '%s' for world '%s': %s", gate.getName(), world.getName(), ee.getMessage());
+                    LocalGateImpl gate = LocalGateImpl.load(world, gateFile);
+                    try {
+                        add(gate, false);
+                        ctx.sendLog("loaded gate '%s' for world '%s'", gate.getName(), world.getName());
+                        loadedCount++;
+                    } catch (GateException ee) {
+                        ctx.warnLog("unable to load gate '%s' for world '%s': %s", gate.getName(), world.getName(), ee.getMessage());
+                    }
+                } catch (TransporterException ge) {
+                    ctx.warnLog("'%s' contains an invalid gate file for world '%s': %s", gateFile.getPath(), world.getName(), ge.getMessage());
+                } catch (Throwable t) {
+                    Utils.severe(t, "there was a problem loading the gate file '%s' for world '%s':", gateFile.getPath(), world.getName());
                 }
-            } catch (TransporterException ge) {
-                ctx.warnLog("'%s' contains an invalid gate file for world '%s': %s", gateFile.getPath(), world.getName(), ge.getMessage());
-            } catch (Throwable t) {
-                Utils.severe(t, "there was a problem loading the gate file '%s' for world '%s':", gateFile.getPath(), world.getName());
             }
+        } finally {
+            gateMap.finishBulkLoad();
         }
         return loadedCount;
     }
@@ -137,6 +133,7 @@ public final class Gates {
             LocalGateImpl lg = (LocalGateImpl)gate;
             LocalGateCreateEvent event = new LocalGateCreateEvent(lg);
             Global.plugin.getServer().getPluginManager().callEvent(event);        
+            LocalState.gateAdded(lg);
             for (Server server : Servers.getAll())
                 server.sendGateAdded(lg);
             Markers.update();
@@ -162,6 +159,7 @@ public final class Gates {
             LocalGateImpl lg = (LocalGateImpl)gate;
             deselectGate(lg);
             lg.save(false);
+            LocalState.gateRemoved(lg);
             for (Server server : Servers.getAll())
                 server.sendGateRemoved(lg);
             Markers.update();
@@ -178,6 +176,7 @@ public final class Gates {
             LocalGateDestroyEvent event = new LocalGateDestroyEvent(lg);
             Global.plugin.getServer().getPluginManager().callEvent(event);        
             lg.destroy(unbuild);
+            LocalState.gateRemoved(lg);
             for (Server server : Servers.getAll())
                 server.sendGateDestroyed(lg);
             Markers.update();
@@ -204,6 +203,7 @@ public final class Gates {
         if (gate instanceof LocalGateImpl) {
             LocalGateImpl lg = (LocalGateImpl)gate;
             lg.onRenameComplete();
+            LocalState.gateRenamed(lg, oldFullName);
             for (Server server : Servers.getAll())
                 server.sendGateRenamed(oldFullName, gate.getName());
             Markers.update();
@@ -249,64 +249,74 @@ public final class Gates {
 
     
     
+    // Returns every gate role played at the block in a single lookup, or
+    // null if there aren't any.
+    public static GateMap.Hit findGates(Block block) {
+        return gateMap.find(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+    
     public static LocalGateImpl findGateForPortal(Location loc) {
-        return portalMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.PORTAL);
+    }
+
+    public static LocalGateImpl findGateForPortal(World world, int x, int y, int z) {
+        return gateMap.getGate(world, x, y, z, GateMap.PORTAL);
     }
 
     public static void addPortalVolume(Volume vol) {
-        portalMap.put(vol);
+        gateMap.put(vol, GateMap.PORTAL);
     }
 
     public static void removePortalVolume(LocalGateImpl gate) {
-        portalMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.PORTAL);
     }
 
     public static LocalGateImpl findGateForProtection(Location loc) {
-        return protectionMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.PROTECTION);
     }
 
     public static void addProtectionVolume(Volume vol) {
-        protectionMap.put(vol);
+        gateMap.put(vol, GateMap.PROTECTION);
     }
 
     public static void removeProtectionVolume(LocalGateImpl gate) {
-        protectionMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.PROTECTION);
     }
 
     public static LocalGateImpl findGateForScreen(Location loc) {
-        return screenMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.SCREEN);
     }
 
     public static void addScreenVolume(Volume vol) {
-        screenMap.put(vol);
+        gateMap.put(vol, GateMap.SCREEN);
     }
 
     public static void removeScreenVolume(LocalGateImpl gate) {
-        screenMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.SCREEN);
     }
     
     public static LocalGateImpl findGateForSwitch(Location loc) {
-        return switchMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.SWITCH);
     }
 
     public static void addSwitchVolume(Volume vol) {
-        switchMap.put(vol);
+        gateMap.put(vol, GateMap.SWITCH);
     }
 
     public static void removeSwitchVolume(LocalGateImpl gate) {
-        switchMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.SWITCH);
     }
 
     public static LocalGateImpl findGateForTrigger(Location loc) {
-        return triggerMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.TRIGGER);
     }
 
     public static void addTriggerVolume(Volume vol) {
-        triggerMap.put(vol);
+        gateMap.put(vol, GateMap.TRIGGER);
     }
 
     public static void removeTriggerVolume(LocalGateImpl gate) {
-        triggerMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.TRIGGER);
     }
     
     
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.bennedum.transporter.net.Message;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * Versioned copy of the worlds, players and gates we advertise to remote
+ * servers.
+ * <p>
+ * Every change to an entry is stamped with the next version number, and
+ * removed entries are kept as tombstones for a while. A remote server tells
+ * us the last version it applied when it asks for a refresh, so we only need
+ * to send what changed after that. If it's too far behind, or it last synced
+ * with an earlier run of this plugin, it gets a full snapshot instead.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class LocalState {
+
+    private static final int MAX_TOMBSTONES = 1000;
+
+    private static final String WORLD = "world:";
+    private static final String PLAYER = "player:";
+    private static final String GATE = "gate:";
+
+    // identifies this run of the plugin, since versions start over at 0
+    private static final String epoch = Long.toHexString(System.currentTimeMillis()) + Long.toHexString(new Random().nextLong());
+    private static final Map<String,Entry> entries = new HashMap<String,Entry>();
+    private static long version = 0;
+    // oldest version we can still send changes from
+    private static long floor = 0;
+    private static int tombstones = 0;
+
+    public static synchronized long getVersion() {
+        return version;
+    }
+
+    // Called as changes are sent out, so anything a remote server learned
+    // from an incremental message has a version it will be corrected from.
+
+    public static synchronized void playerChanged(Player player) {
+        put(PLAYER + player.getName(), playerValue(player));
+    }
+
+    public static synchronized void playerLeft(Player player) {
+        remove(PLAYER + player.getName());
+    }
+
+    public static synchronized void gateAdded(LocalGateImpl gate) {
+        put(GATE + gate.getLocalName(), gate.getType().toString());
+    }
+
+    public static synchronized void gateRemoved(LocalGateImpl gate) {
+        remove(GATE + gate.getLocalName());
+    }
+
+    public static synchronized void gateRenamed(LocalGateImpl gate, String oldLocalName) {
+        remove(GATE + oldLocalName);
+        gateAdded(gate);
+    }
+
+    // Brings the entries up to date with the current state and puts the
+    // worlds, players and gates a remote server needs into the message. When
+    // the remote's epoch and version allow, only the changes since that
+    // version are included and the message is marked as a delta.
+    // must be called from the main thread
+    public static synchronized void getRefreshData(Message out, String remoteEpoch, long remoteVersion) {
+        update();
+
+        boolean delta = epoch.equals(remoteEpoch) &&
+                        (remoteVersion >= floor) &&
+                        (remoteVersion <= version);
+        long since = delta ? remoteVersion : 0;
+
+        List<String> worlds = new ArrayList<String>();
+        List<Message> players = new ArrayList<Message>();
+        List<Message> gates = new ArrayList<Message>();
+        List<String> removedWorlds = new ArrayList<String>();
+        List<String> removedPlayers = new ArrayList<String>();
+        List<String> removedGates = new ArrayList<String>();
+
+        for (Map.Entry<String,Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.version <= since) continue;
+            String key = e.getKey();
+            if (key.startsWith(WORLD)) {
+                String name = key.substring(WORLD.length());
+                if (entry.value != null) worlds.add(name);
+                else if (delta) removedWorlds.add(name);
+            } else if (key.startsWith(PLAYER)) {
+                String name = key.substring(PLAYER.length());
+                if (entry.value != null) {
+                    Message msg = new Message();
+                    msg.put("name", name);
+                    msg.putAll((Message)entry.value);
+                    players.add(msg);
+                } else if (delta) removedPlayers.add(name);
+            } else if (key.startsWith(GATE)) {
+                String name = key.substring(GATE.length());
+                if (entry.value != null) {
+                    Message gm = new Message();
+                    gm.put("type", entry.value);
+                    gm.put("name", name);
+                    gates.add(gm);
+                } else if (delta) removedGates.add(name);
+            }
+        }
+
+        out.put("worlds", worlds);
+        out.put("players", players);
+        out.put("gates", gates);
+        out.put("stateEpoch", epoch);
+        out.put("stateVersion", version);
+        if (delta) {
+            out.put("delta", true);
+            out.put("stateSince", since);
+            out.put("removedWorlds", removedWorlds);
+            out.put("removedPlayers", removedPlayers);
+            out.put("removedGates", removedGates);
+        }
+    }
+
+    private static void update() {
+        Set<String> current = new HashSet<String>();
+
+        for (World world : Global.plugin.getServer().getWorlds()) {
+            String key = WORLD + world.getName();
+            current.add(key);
+            put(key, Boolean.TRUE);
+        }
+        for (Player player : Global.plugin.getServer().getOnlinePlayers()) {
+            String key = PLAYER + player.getName();
+            current.add(key);
+            put(key, playerValue(player));
+        }
+        for (LocalGateImpl gate : Gates.getLocalGates()) {
+            String key = GATE + gate.getLocalName();
+            current.add(key);
+            put(key, gate.getType().toString());
+        }
+
+        for (String key : new ArrayList<String>(entries.keySet()))
+            if (! current.contains(key))
+                remove(key);
+        pruneTombstones();
+    }
+
+    private static Message playerValue(Player player) {
+        Message value = new Message();
+        value.put("displayName", player.getDisplayName());
+        value.put("worldName", player.getWorld().getName());
+        return value;
+    }
+
+    private static void put(String key, Object value) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entries.put(key, new Entry(value, ++version));
+            return;
+        }
+        if (value.equals(entry.value)) return;
+        if (entry.value == null) tombstones--;
+        entry.value = value;
+        entry.version = ++version;
+    }
+
+    private static void remove(String key) {
+        Entry entry = entries.get(key);
+        if ((entry == null) || (entry.value == null)) return;
+        entry.value = null;
+        entry.version = ++version;
+        tombstones++;
+    }
+
+    // Drops the oldest tombstones once there are too many. Remote servers
+    // older than the newest dropped tombstone will get a full snapshot.
+    private static void pruneTombstones() {
+        if (tombstones <= MAX_TOMBSTONES) return;
+        List<Long> versions = new ArrayList<Long>(tombstones);
+        for (Entry entry : entries.values())
+            if (entry.value == null) versions.add(entry.version);
+        Collections.sort(versions);
+        long cutoff = versions.get(tombstones - (MAX_TOMBSTONES / 2) - 1);
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if ((entry.value == null) && (entry.version <= cutoff)) {
+                i.remove();
+                tombstones--;
+            }
+        }
+        floor = cutoff;
+    }
+
+    private static final class Entry {
+        Object value;
+        long version;
+        Entry(Object value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+}
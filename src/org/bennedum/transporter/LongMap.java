@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter;
+
+/**
+ * Map from primitive longs to values, for use by a single thread.
+ * <p>
+ * An open addressing table with linear probing, so there's no boxing and no
+ * entry objects for each mapping, and a key that isn't there usually costs a
+ * single probe. See ConcurrentLongMap for a thread safe version.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class LongMap<V> {
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public LongMap() {
+        this(16);
+    }
+
+    // Sized to hold the expected number of mappings without growing.
+    public LongMap(int expected) {
+        int capacity = 16;
+        while ((capacity * 3 / 4) < expected)
+            capacity *= 2;
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) return (V)value;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("value is required");
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                Object old = values[i];
+                values[i] = value;
+                return (V)old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (keys.length * 3 / 4))
+            resize();
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) break;
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null) return null;
+        Object old = values[i];
+        values[i] = null;
+        size--;
+        // shift back the rest of the run so lookups don't stop early
+        int j = (i + 1) & mask;
+        while (values[j] != null) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+        return (V)old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        keys = new long[16];
+        values = new Object[16];
+        size = 0;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldValues[k] == null) continue;
+            int i = hash(oldKeys[k]) & mask;
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[k];
+            values[i] = oldValues[k];
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter;
+
+/**
+ * Set of primitive longs, for use by a single thread.
+ * <p>
+ * An open addressing table with linear probing, like LongMap. Zero marks an
+ * empty slot, so a zero key is tracked on the side.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class LongSet {
+
+    private long[] keys;
+    private boolean hasZero = false;
+    private int size = 0;
+
+    public LongSet() {
+        this(16);
+    }
+
+    // Sized to hold the expected number of keys without growing.
+    public LongSet(int expected) {
+        int capacity = 16;
+        while ((capacity * 3 / 4) < expected)
+            capacity *= 2;
+        keys = new long[capacity];
+    }
+
+    // Returns true if the key wasn't already in the set.
+    public boolean add(long key) {
+        if (key == 0) {
+            if (hasZero) return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0) {
+            if (k == key) return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        if (++size > (keys.length * 3 / 4))
+            resize();
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) return hasZero;
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0) {
+            if (k == key) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long[] toArray() {
+        long[] array = new long[size];
+        int n = 0;
+        if (hasZero) array[n++] = 0;
+        for (long key : keys)
+            if (key != 0) array[n++] = key;
+        return array;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        keys = new long[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (long key : oldKeys) {
+            if (key == 0) continue;
+            int i = hash(key) & mask;
+            while (keys[i] != 0)
+                i = (i + 1) & mask;
+            keys[i] = key;
+        }
+    }
+
+}
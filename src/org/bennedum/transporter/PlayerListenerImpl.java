@@ -23,6 +23,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
@@ -143,18 +144,19 @@ public final class PlayerListenerImpl implements Listener {
     }
     */
     
-    private Map<Player,Location> playerLocations = new HashMap<Player,Location>();
+    // the block each player was last seen in, by entity id
+    private final LongMap<LastBlock> lastBlocks = new LongMap<LastBlock>();
     
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerInteract(PlayerInteractEvent event) {
         Block block = event.getClickedBlock();
         if (block == null) return;
-        Location location = block.getLocation();
-        Context ctx = new Context(event.getPlayer());
-
-        LocalGateImpl triggerGate = Gates.findGateForTrigger(location);
-        LocalGateImpl switchGate = Gates.findGateForSwitch(location);
+        GateMap.Hit hit = Gates.findGates(block);
+        if (hit == null) return;
+        LocalGateImpl triggerGate = hit.getGate(GateMap.TRIGGER);
+        LocalGateImpl switchGate = hit.getGate(GateMap.SWITCH);
         if ((triggerGate == null) && (switchGate == null)) return;
+        Context ctx = new Context(event.getPlayer());
         if ((triggerGate != null) && (switchGate != null) && (triggerGate != switchGate)) switchGate = null;
         
         LocalGateImpl testGate = (triggerGate == null) ? switchGate : triggerGate;
@@ -211,13 +213,26 @@ public final class PlayerListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerMove(PlayerMoveEvent event) {
-        Location loc = quantizePlayerLocation(event.getPlayer(), event.getTo());
-        if (loc == null) return;
-        
-  //Utils.debug(Utils.blockCoords(loc));
-        
+        // this runs for nearly every player every tick, so staying in the
+        // same block or moving where there's no gate allocates nothing
         Player player = event.getPlayer();
-        LocalGateImpl fromGate = Gates.findGateForPortal(loc);
+        Location to = event.getTo();
+        World world = to.getWorld();
+        int x = to.getBlockX();
+        int y = to.getBlockY();
+        int z = to.getBlockZ();
+        LastBlock last = lastBlocks.get(player.getEntityId());
+        if (last == null) {
+            last = new LastBlock();
+            lastBlocks.put(player.getEntityId(), last);
+        } else if ((last.x == x) && (last.y == y) && (last.z == z) && (last.world == world))
+            return;
+        last.world = world;
+        last.x = x;
+        last.y = y;
+        last.z = z;
+        
+        LocalGateImpl fromGate = Gates.findGateForPortal(world, x, y, z);
         if (fromGate == null) {
             ReservationImpl.removeGateLock(player);
             return;
@@ -246,6 +261,7 @@ public final class PlayerListenerImpl implements Listener {
         Location location = event.getTo();
         if ((location == null) ||
             (location.getWorld() == null)) return;
+        LocalState.playerChanged(player);
         for (Server server : Servers.getAll())
             server.sendPlayerChangeWorld(player);
     }
@@ -254,6 +270,7 @@ public final class PlayerListenerImpl implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
         ReservationImpl r = ReservationImpl.get(player);
+        LocalState.playerChanged(player);
         for (Server server : Servers.getAll())
             server.sendPlayerJoin(player, r != null);
         if (r == null) {
@@ -272,7 +289,9 @@ public final class PlayerListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerQuit(PlayerQuitEvent event) {
         Player player = event.getPlayer();
+        lastBlocks.remove(player.getEntityId());
         ReservationImpl r = ReservationImpl.get(player);
+        LocalState.playerLeft(player);
         for (Server server : Servers.getAll())
             server.sendPlayerQuit(player, r != null);
         if (r != null)
@@ -282,7 +301,9 @@ public final class PlayerListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerKick(PlayerKickEvent event) {
         Player player = event.getPlayer();
+        lastBlocks.remove(player.getEntityId());
         ReservationImpl r = ReservationImpl.get(player);
+        LocalState.playerLeft(player);
         for (Server server : Servers.getAll())
             server.sendPlayerKick(player, r != null);
         if (r != null)
@@ -302,12 +323,9 @@ public final class PlayerListenerImpl implements Listener {
         Chat.send(event.getPlayer(), event.getMessage());
     }
 
-    private Location quantizePlayerLocation(Player player, Location location) {
-        Location newQLoc = new Location(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        Location qLoc = playerLocations.get(player);
-        if ((qLoc != null) && qLoc.equals(newQLoc)) return null;
-        playerLocations.put(player, newQLoc);
-        return newQLoc;
+    private static final class LastBlock {
+        World world;
+        int x, y, z;
     }
     
 }
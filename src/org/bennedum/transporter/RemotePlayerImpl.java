@@ -17,6 +17,7 @@ package org.bennedum.transporter;
 
 import org.bennedum.transporter.api.Callback;
 import org.bennedum.transporter.api.RemoteException;
+import org.bennedum.transporter.api.RemoteFuture;
 import org.bennedum.transporter.api.RemoteLocation;
 import org.bennedum.transporter.api.RemotePlayer;
 import org.bennedum.transporter.api.RemoteServer;
@@ -133,6 +134,27 @@ public final class RemotePlayerImpl implements RemotePlayer {
             }
         }, "player", "sendRawMessage", args);
     }
+
+    @Override
+    public RemoteFuture<RemoteLocation> getRemoteLocation() {
+        RemoteFuture<RemoteLocation> future = new RemoteFuture<RemoteLocation>();
+        getRemoteLocation(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Void> sendMessage(String msg) {
+        RemoteFuture<Void> future = new RemoteFuture<Void>();
+        sendMessage(future, msg);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Void> sendRawMessage(String msg) {
+        RemoteFuture<Void> future = new RemoteFuture<Void>();
+        sendRawMessage(future, msg);
+        return future;
+    }
     
     @Override
     public void sendPM(Player fromPlayer, String message) {
@@ -17,6 +17,7 @@ package org.bennedum.transporter;
 
 import org.bennedum.transporter.api.Callback;
 import org.bennedum.transporter.api.RemoteException;
+import org.bennedum.transporter.api.RemoteFuture;
 import org.bennedum.transporter.api.RemoteServer;
 import org.bennedum.transporter.api.RemoteWorld;
 import org.bennedum.transporter.net.Message;
@@ -128,4 +129,39 @@ public final class RemoteWorldImpl implements RemoteWorld {
         }, "world", "getTime", args);
     }
     
+    @Override
+    public RemoteFuture<Difficulty> getDifficulty() {
+        RemoteFuture<Difficulty> future = new RemoteFuture<Difficulty>();
+        getDifficulty(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Environment> getEnvironment() {
+        RemoteFuture<Environment> future = new RemoteFuture<Environment>();
+        getEnvironment(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Long> getFullTime() {
+        RemoteFuture<Long> future = new RemoteFuture<Long>();
+        getFullTime(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Long> getSeed() {
+        RemoteFuture<Long> future = new RemoteFuture<Long>();
+        getSeed(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Long> getTime() {
+        RemoteFuture<Long> future = new RemoteFuture<Long>();
+        getTime(future);
+        return future;
+    }
+    
 }
@@ -54,7 +54,8 @@ import org.bukkit.util.Vector;
  */
 public final class ReservationImpl implements Reservation {
 
-    private static final Map<Integer,Long> gateLocks = new HashMap<Integer,Long>();
+    // expiry times by entity id
+    private static final LongMap<Long> gateLocks = new LongMap<Long>();
 
     private static long nextId = 1;
     private static final Map<Long,ReservationImpl> reservations = new HashMap<Long,ReservationImpl>();
@@ -82,6 +83,10 @@ public final class ReservationImpl implements Reservation {
     }
 
     private static boolean remove(ReservationImpl r) {
+        if (r.timeout != null) {
+            r.timeout.cancel();
+            r.timeout = null;
+        }
         if (reservations.remove(r.localId) != null) {
             Utils.debug("removed reservation %s", r.localId);
             return true;
@@ -90,7 +95,7 @@ public final class ReservationImpl implements Reservation {
     }
 
     public static void removeGateLock(Entity entity) {
-        if (entity == null) return;
+        if ((entity == null) || gateLocks.isEmpty()) return;
         Long expiry = gateLocks.get(entity.getEntityId());
         if (expiry == null) return;
         if (expiry <= System.currentTimeMillis()) {
@@ -101,7 +106,7 @@ public final class ReservationImpl implements Reservation {
 
     public static boolean isGateLocked(Entity entity) {
         if (entity == null) return false;
-        return gateLocks.containsKey(entity.getEntityId());
+        return gateLocks.get(entity.getEntityId()) != null;
     }
 
     public static void addGateLock(Entity entity) {
@@ -158,6 +163,7 @@ public final class ReservationImpl implements Reservation {
     private Server toServer = null;         // remote gate
 
     private boolean createdEntity = false;
+    private TimingWheel.Timeout timeout = null;
 
     // player stepping into gate
     public ReservationImpl(Player player, LocalGateImpl fromGate) throws ReservationException {
@@ -560,13 +566,16 @@ public final class ReservationImpl implements Reservation {
 
             } else {
                 // going to remote server
+                // don't leave the traveler waiting on a peer that has stopped answering
+                if (toServer.isSuspect())
+                    throw new ReservationException("server '%s' is not responding", toServer.getName());
                 try {
                     Utils.debug("sending reservation for %s to %s...", getTraveler(), getDestination());
                     toServer.sendReservation(this);
 
-                    // setup delayed task to remove the reservation on this side if it doesn't work out
+                    // setup a timeout to remove the reservation on this side if it doesn't work out
                     final ReservationImpl me = this;
-                    Utils.fireDelayed(new Runnable() {
+                    timeout = TimingWheel.scheduleMain(new Runnable() {
                         @Override
                         public void run() {
                             if (! remove(me)) return;
@@ -617,9 +626,9 @@ public final class ReservationImpl implements Reservation {
                     Utils.warning("reservation arrival for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName(), e.getMessage());
                 }
             } else {
-                // set up a delayed task to cancel the arrival if they never arrive
+                // set up a timeout to cancel the arrival if they never arrive
                 final ReservationImpl res = this;
-                Utils.fireDelayed(new Runnable() {
+                timeout = TimingWheel.scheduleMain(new Runnable() {
                     @Override
                     public void run() {
                         if (! remove(res)) return;
@@ -32,7 +32,9 @@ import java.util.regex.PatternSyntaxException;
 import org.bennedum.transporter.api.Callback;
 import org.bennedum.transporter.api.GateException;
 import org.bennedum.transporter.api.GateType;
+import org.bennedum.transporter.api.RemoteBatch;
 import org.bennedum.transporter.api.RemoteException;
+import org.bennedum.transporter.api.RemoteFuture;
 import org.bennedum.transporter.api.RemoteGate;
 import org.bennedum.transporter.api.RemotePlayer;
 import org.bennedum.transporter.api.RemoteServer;
@@ -52,8 +54,10 @@ import org.bennedum.transporter.config.ConfigurationNode;
 import org.bennedum.transporter.net.Connection;
 import org.bennedum.transporter.net.Message;
 import org.bennedum.transporter.net.Network;
+import org.bennedum.transporter.net.Peer;
+import org.bennedum.transporter.net.PeerStats;
+import org.bennedum.transporter.net.SendQueue;
 import org.bukkit.GameMode;
-import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.ConsoleCommandSender;
 import org.bukkit.command.RemoteConsoleCommandSender;
@@ -63,15 +67,30 @@ import org.bukkit.entity.Player;
  *
  * @author frdfsnlght <frdfsnlght@gmail.com>
  */
-public final class Server implements OptionsListener, RemoteServer {
+public final class Server implements OptionsListener, RemoteServer, Peer {
 
     public static final int DEFAULT_MC_PORT = 25565;
 
-    private static final int SEND_KEEPALIVE_INTERVAL = 60000;
-    private static final int RECV_KEEPALIVE_INTERVAL = 90000;
+    // older peers only send a keepalive after a minute of silence
+    private static final int LEGACY_KEEPALIVE_INTERVAL = 60000;
+    private static final int LEGACY_KEEPALIVE_TIMEOUT = 90000;
+    private static final int MIN_KEEPALIVE_DELAY = 100;
+
+    // peers at this version ask for changes since their last refresh
+    private static final int STATE_SYNC_PROTOCOL_VERSION = 9;
+    // how long to hang on to remote state after a disconnect
+    private static final int REMOTE_STATE_RETAIN_TIME = 300000;
+    // peers at this version understand envelopes
+    private static final int ENVELOPE_PROTOCOL_VERSION = 9;
+    private static final int ENVELOPE_MAX_COMMANDS = 100;
+    // peers at this version answer batched API requests
+    private static final int API_BATCH_PROTOCOL_VERSION = 10;
+    // peers at this version echo keepalive probes so we can time the round trip
+    private static final int KEEPALIVE_PROBE_PROTOCOL_VERSION = 10;
 
     private static final Set<String> OPTIONS = new HashSet<String>();
     private static final Map<String,Method> MESSAGE_HANDLERS = new HashMap<String,Method>();
+    private static final Map<String,Integer> MESSAGE_PRIORITIES = new HashMap<String,Integer>();
     
     static {
         OPTIONS.add("pluginAddress");
@@ -113,6 +132,21 @@ public final class Server implements OptionsListener, RemoteServer {
         addMessageHandler("privateMessage");
         addMessageHandler("apiRequest");
         addMessageHandler("apiResult");
+
+        // anything not listed here is a state change
+        MESSAGE_PRIORITIES.put("nop", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("error", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("ping", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("pong", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("reservation", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("reservationApproved", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("reservationDenied", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("reservationArrived", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("reservationTimeout", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("apiRequest", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("apiResult", Connection.PRIORITY_CONTROL);
+        MESSAGE_PRIORITIES.put("chat", Connection.PRIORITY_BULK);
+        MESSAGE_PRIORITIES.put("privateMessage", Connection.PRIORITY_BULK);
     }
 
     private static void addMessageHandler(String name) {
@@ -171,9 +205,18 @@ public final class Server implements OptionsListener, RemoteServer {
     private boolean announcePlayers = false;
 
     private Connection connection = null;
+    private final SendQueue sendQueue = new SendQueue(this);
+    private final PeerStats peerStats = new PeerStats();
+    private long lastKeepAliveProbeTime = 0;
+    private volatile TimingWheel.Timeout keepAliveTask = null;
+    private volatile boolean suspect = false;
+    private final List<Message> envelope = new ArrayList<Message>();
+    private boolean envelopeScheduled = false;
+    private int envelopePriority = Connection.PRIORITY_BULK;
     private boolean allowReconnect = true;
     private int reconnectTask = -1;
     private boolean fastReconnect = false;
+    private long reconnectDelay = 0;
     private boolean connected = false;
     private String remoteVersion = null;
     private List<AddressMatch> remotePublicAddressMatches = null;
@@ -186,11 +229,13 @@ public final class Server implements OptionsListener, RemoteServer {
     private Map<String,RemotePlayerImpl> remotePlayers = new HashMap<String,RemotePlayerImpl>();
     private Map<String,RemoteWorldImpl> remoteWorlds = new HashMap<String,RemoteWorldImpl>();
     private Map<String,RemoteGateImpl> remoteGates = new HashMap<String,RemoteGateImpl>();
+    private String remoteStateEpoch = null;
+    private long remoteStateVersion = 0;
+    private int remoteStateTask = -1;
     
     private long nextRequestId = 1;
-    private Map<Long,Callback<Message>> requests = new HashMap<Long,Callback<Message>>();
-    
-    // TODO: add a way to expire old API requests
+    private final ConcurrentLongMap<APICallback<Message>> requests = new ConcurrentLongMap<APICallback<Message>>();
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
     
     public Server(String name, String plgAddr, String key) throws ServerException {
         try {
@@ -230,6 +275,8 @@ public final class Server implements OptionsListener, RemoteServer {
 
     @Override
     public Set<RemotePlayer> getRemotePlayers() {
+        // players are kept across a disconnect, but they're not really here
+        if (! readyForAPI) return new HashSet<RemotePlayer>();
         return new HashSet<RemotePlayer>(remotePlayers.values());
     }
     
@@ -373,6 +420,60 @@ public final class Server implements OptionsListener, RemoteServer {
         }, "server", "getVersion", args);
     }
 
+    @Override
+    public RemoteFuture<Integer> broadcast(String message, String permission) {
+        RemoteFuture<Integer> future = new RemoteFuture<Integer>();
+        broadcast(future, message, permission);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Integer> broadcastMessage(String message) {
+        RemoteFuture<Integer> future = new RemoteFuture<Integer>();
+        broadcastMessage(future, message);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<Boolean> dispatchCommand(CommandSender sender, String commandLine) {
+        RemoteFuture<Boolean> future = new RemoteFuture<Boolean>();
+        dispatchCommand(future, sender, commandLine);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<GameMode> getDefaultGameMode() {
+        RemoteFuture<GameMode> future = new RemoteFuture<GameMode>();
+        getDefaultGameMode(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<String> getRemoteName() {
+        RemoteFuture<String> future = new RemoteFuture<String>();
+        getName(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<String> getServerId() {
+        RemoteFuture<String> future = new RemoteFuture<String>();
+        getServerId(future);
+        return future;
+    }
+
+    @Override
+    public RemoteFuture<String> getVersion() {
+        RemoteFuture<String> future = new RemoteFuture<String>();
+        getVersion(future);
+        return future;
+    }
+
+    @Override
+    public RemoteBatch newBatch() {
+        return new Batch();
+    }
+
     /* End RemoteServer interface */
     
     public void setName(String name) throws ServerException {
@@ -410,6 +511,7 @@ public final class Server implements OptionsListener, RemoteServer {
         if ((key == null) || key.isEmpty())
             throw new IllegalArgumentException("key is required");
         this.key = key;
+        Servers.keysChanged();
     }
     
     @Override
@@ -561,15 +663,48 @@ public final class Server implements OptionsListener, RemoteServer {
     }
 
     // incoming connection
+    @Override
     public void setConnection(Connection conn) {
         connection = conn;
         connectionAttempts = 0;
+        // the peer is clearly up, so if this connection doesn't work out
+        // try it right back instead of waiting out the backoff
+        allowReconnect = true;
+        fastReconnect = true;
+        reconnectDelay = 0;
     }
 
+    @Override
     public Connection getConnection() {
         return connection;
     }
 
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    @Override
+    public PeerStats getPeerStats() {
+        return peerStats;
+    }
+
+    // Returns the link counters along with the current queue depths.
+    public Message getStats() {
+        Message m = peerStats.toMessage();
+        m.put("name", name);
+        m.put("connected", isConnected());
+        Connection conn = connection;
+        m.put("protocolVersion", (conn == null) ? 0 : conn.getProtocolVersion());
+        m.put("sendQueueDepth", sendQueue.getQueueDepth());
+        m.put("writeQueueDepth", (conn == null) ? 0 : conn.getWriteQueueDepth());
+        m.put("queuedBytes", (conn == null) ? 0 : conn.getQueuedBytes());
+        m.put("congested", (conn != null) && conn.isCongested());
+        m.put("suspect", isSuspect());
+        m.put("lastReceived", (conn == null) ? 0 : (System.currentTimeMillis() - conn.getLastMessageReceivedTime()));
+        m.put("pendingAPIRequests", requests.size());
+        return m;
+    }
+
     public String getRemoteVersion() {
         return remoteVersion;
     }
@@ -610,6 +745,7 @@ public final class Server implements OptionsListener, RemoteServer {
         connection.open();
     }
 
+    @Override
     public void disconnect(boolean allowReconnect) {
         this.allowReconnect = allowReconnect;
         cancelOutbound();
@@ -617,10 +753,12 @@ public final class Server implements OptionsListener, RemoteServer {
         connection.close();
     }
 
+    @Override
     public boolean isConnecting() {
         return (reconnectTask != -1);
     }
 
+    @Override
     public boolean isConnectionConnected() {
         if (connection == null) return false;
         return connection.isOpen();
@@ -641,10 +779,14 @@ public final class Server implements OptionsListener, RemoteServer {
         if (fastReconnect)
             connect();
         else {
-            int time = Network.getReconnectInterval();
-            int skew = Network.getReconnectSkew();
-            if (time < skew) time = skew;
-            time += (Math.random() * (double)(skew * 2)) - skew;
+            // capped exponential backoff with decorrelated jitter: each delay
+            // is picked at random between the base and three times the last
+            // one, so peers that lost a server together drift apart
+            long base = Network.getReconnectInterval();
+            long cap = Math.max(Network.getReconnectMaxInterval(), base);
+            long prev = Math.max(reconnectDelay, base);
+            long time = Math.min(cap, base + (long)(Math.random() * (double)((prev * 3) - base)));
+            reconnectDelay = time;
 
             if (! connectionMessagesSuppressed())
                 Utils.info("will attempt to reconnect to '%s' in about %d seconds", getName(), (time / 1000));
@@ -659,6 +801,7 @@ public final class Server implements OptionsListener, RemoteServer {
 
     }
 
+    @Override
     public boolean connectionMessagesSuppressed() {
         int limit = Network.getSuppressConnectionAttempts();
         return (limit >= 0) && (connectionAttempts > limit);
@@ -667,51 +810,118 @@ public final class Server implements OptionsListener, RemoteServer {
     public void refresh() {
         if (! isConnectionConnected())
             connect();
-        else {
-            Message message = createMessage("refresh");
-            sendMessage(message);
-        }
+        else
+            sendRefresh();
     }
 
-    public void checkKeepAlive() {
-        if (! isConnectionConnected()) return;
-        if ((System.currentTimeMillis() - connection.getLastMessageReceivedTime()) < RECV_KEEPALIVE_INTERVAL) return;
-        Utils.warning("no keepalive received from server '%s'", name);
-        fastReconnect = true;
-        disconnect(true);
+    // Returns true when the connection is up but the peer has been silent for
+    // too long. Nothing sent to a suspect peer is likely to be answered any
+    // time soon.
+    public boolean isSuspect() {
+        return suspect && isConnectionConnected();
     }
 
-    // Connection callbacks, called from main network thread.
+    // Each connection runs its own keepalive deadlines on the timer thread,
+    // so a dead peer is noticed within the keepalive timeout no matter how
+    // long the network thread sleeps.
+    private void scheduleKeepAlive(final Connection conn, long delay) {
+        keepAliveTask = TimingWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkKeepAlive(conn);
+            }
+        }, Math.max(delay, MIN_KEEPALIVE_DELAY));
+    }
+
+    private void cancelKeepAlive() {
+        TimingWheel.Timeout task = keepAliveTask;
+        if (task != null) task.cancel();
+        keepAliveTask = null;
+    }
+
+    // called from the timer thread
+    private void checkKeepAlive(Connection conn) {
+        if ((conn != connection) || (! conn.isOpen())) return;
+        long now = System.currentTimeMillis();
+        long interval = Network.getKeepAliveInterval();
+        long timeout = Math.max(Network.getKeepAliveTimeout(), 2 * interval);
+        // a healthy peer answers every probe, so missing one is suspicious
+        long suspectAfter = timeout / 2;
+        if (conn.getProtocolVersion() < KEEPALIVE_PROBE_PROTOCOL_VERSION) {
+            timeout = Math.max(timeout, LEGACY_KEEPALIVE_TIMEOUT);
+            suspectAfter = Math.max(suspectAfter, LEGACY_KEEPALIVE_INTERVAL + interval);
+        }
+        long lastReceived = conn.getLastMessageReceivedTime();
+        long silence = now - lastReceived;
+        if (silence >= timeout) {
+            Utils.warning("no keepalive received from server '%s' in %d seconds", name, silence / 1000);
+            fastReconnect = true;
+            allowReconnect = true;
+            cancelOutbound();
+            // a dead peer won't drain its queue, so don't wait for it
+            conn.abort();
+            return;
+        }
+        long suspectAt = lastReceived + suspectAfter;
+        if ((now >= suspectAt) && (! suspect)) {
+            suspect = true;
+            Utils.warning("server '%s' has not responded in %d seconds", name, silence / 1000);
+        }
+        long nextSend = sendKeepAlive(conn, now, interval);
+        long next = Math.min(nextSend, lastReceived + timeout);
+        if (! suspect) next = Math.min(next, suspectAt);
+        scheduleKeepAlive(conn, next - now);
+    }
+
+    // Connection callbacks, called from the network threads.
 
     // outbound connection
+    @Override
     public void onConnected(String version) {
         allowReconnect = true;
         connected = true;
         connectionAttempts = 0;
+        fastReconnect = false;
+        reconnectDelay = 0;
         remoteVersion = version;
+        peerStats.onConnected();
+        suspect = false;
+        cancelKeepAlive();
+        scheduleKeepAlive(connection, Network.getKeepAliveInterval());
         cancelOutbound();
         Utils.info("connected to '%s' (%s), running v%s", getName(), connection.getName(), remoteVersion);
+        final boolean stateSync = connection.getProtocolVersion() >= STATE_SYNC_PROTOCOL_VERSION;
         Utils.fire(new Runnable() {
             @Override
             public void run() {
-                receiveRefresh(null);
+                cancelRemoteStateExpiry();
+                // newer peers ask for what they're missing, older ones expect everything
+                if (stateSync)
+                    sendRefresh();
+                else
+                    receiveRefresh(null);
             }
         });
     }
 
+    @Override
     public void onDisconnected() {
         if (connected) {
             Utils.info("disconnected from '%s' (%s)", getName(), connection.getName());
             connected = false;
+            peerStats.onDisconnected();
         }
         readyForAPI = false;
         connection = null;
-        if (Network.isStopped()) {
-            Gates.removeGatesForServer(this);
-            remotePlayers.clear();
-            remoteGates.clear();
-            remoteWorlds.clear();
-        } else {
+        cancelKeepAlive();
+        suspect = false;
+        synchronized (envelope) {
+            envelope.clear();
+        }
+        sendQueue.clear();
+        if (Network.isStopped())
+            clearRemoteState();
+        else {
             reconnect();
             final Server me = this;
             Utils.fire(new Runnable() {
@@ -719,15 +929,22 @@ public final class Server implements OptionsListener, RemoteServer {
                 public void run() {
                     RemoteServerDisconnectEvent event = new RemoteServerDisconnectEvent(me);
                     Global.plugin.getServer().getPluginManager().callEvent(event);        
-                    Gates.removeGatesForServer(me);
-                    remotePlayers.clear();
-                    remoteGates.clear();
-                    remoteWorlds.clear();
+                    // keep the remote state around so a quick reconnect only needs the changes
+                    cancelRemoteStateExpiry();
+                    remoteStateTask = Utils.fireDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            remoteStateTask = -1;
+                            if (! isConnectionConnected())
+                                clearRemoteState();
+                        }
+                    }, REMOTE_STATE_RETAIN_TIME);
                 }
             });
         }
     }
 
+    @Override
     public void onMessage(final Message message) {
         String error = message.getString("error");
         if (error != null) {
@@ -740,6 +957,51 @@ public final class Server implements OptionsListener, RemoteServer {
             disconnect(true);
             return;
         }
+        if (suspect) {
+            suspect = false;
+            Utils.info("server '%s' is responding again", getName());
+        }
+        // keepalive probes are answered right here, off the main thread, so
+        // the round trip only measures the link
+        if (command.equals("keepAlive")) {
+            Connection conn = connection;
+            if (conn == null) return;
+            message.put("command", "keepAliveAck");
+            conn.sendMessage(message, true);
+            return;
+        }
+        if (command.equals("keepAliveAck")) {
+            peerStats.onRoundTrip(System.nanoTime() - message.getLong("time"));
+            return;
+        }
+        if (command.equals("envelope")) {
+            final List<Message> commands = message.getMessageList("commands");
+            if (commands == null) {
+                Utils.warning("missing commands in envelope from connection with %s", connection);
+                disconnect(true);
+                return;
+            }
+            Utils.debug("received envelope of %d commands from %s", commands.size(), getName());
+            Utils.fire(new Runnable() {
+                @Override
+                public void run() {
+                    for (Message msg : commands) {
+                        String error = msg.getString("error");
+                        if (error != null) {
+                            Utils.warning("server '%s' complained: %s", getName(), error);
+                            continue;
+                        }
+                        String cmd = msg.getString("command");
+                        if (cmd == null) {
+                            Utils.warning("missing command in envelope from '%s'", getName());
+                            continue;
+                        }
+                        receiveMessage(msg, cmd);
+                    }
+                }
+            });
+            return;
+        }
         Utils.debug("received command '%s' from %s", command, getName());
         Utils.fire(new Runnable() {
             @Override
@@ -751,12 +1013,36 @@ public final class Server implements OptionsListener, RemoteServer {
         
     // Remote commands
     
-    public void sendKeepAlive() {
-        if (! isConnectionConnected()) return;
-        if ((System.currentTimeMillis() - connection.getLastMessageSentTime()) < SEND_KEEPALIVE_INTERVAL) return;
+    // Probes newer peers every interval, and sends older peers a nop once
+    // nothing else has been sent for an interval. Returns when the next
+    // keepalive is due.
+    // called from the timer thread
+    private long sendKeepAlive(Connection conn, long now, long interval) {
+        if (conn.getProtocolVersion() >= KEEPALIVE_PROBE_PROTOCOL_VERSION) {
+            if ((now - lastKeepAliveProbeTime) >= interval) {
+                lastKeepAliveProbeTime = now;
+                Message message = createMessage("keepAlive");
+                message.put("time", System.nanoTime());
+                conn.sendMessage(message, true);
+            }
+            return lastKeepAliveProbeTime + interval;
+        }
+        if ((now - conn.getLastMessageSentTime()) < interval)
+            return conn.getLastMessageSentTime() + interval;
         Utils.debug("sending keepalive to '%s'", name);
         Message message = createMessage("nop");
         sendMessage(message);
+        return now + interval;
+    }
+
+    public void sendRefresh() {
+        if (! isConnectionConnected()) return;
+        Message message = createMessage("refresh");
+        if (remoteStateEpoch != null) {
+            message.put("stateEpoch", remoteStateEpoch);
+            message.put("stateVersion", remoteStateVersion);
+        }
+        sendMessage(message);
     }
 
     public void sendPing(Player player) {
@@ -964,33 +1250,53 @@ public final class Server implements OptionsListener, RemoteServer {
     }
     
     public void sendAPIRequest(APICallback<Message> cb, String target, String method, Message args) {
+        cb.setCall(target, method, args);
+        Batch b = batch.get();
+        if (b != null)
+            b.addCall(cb);
+        else
+            sendAPICall(cb);
+    }
+    
+    private void sendAPICall(APICallback<Message> cb) {
+        Message out = createMessage("apiRequest");
+        out.put("target", cb.getTarget());
+        out.put("method", cb.getMethod());
+        out.put("args", cb.getArgs());
+        sendAPIRequest(cb, out);
+    }
+    
+    private void sendAPIRequest(APICallback<Message> cb, Message out) {
         if (! isConnectionConnected()) {
             cb.onFailure(new RemoteException("not connected"));
             return;
         }
-        final long rid = nextRequestId++;
-        Message out = createMessage("apiRequest");
+        final long rid;
+        synchronized (requests) {
+            rid = nextRequestId++;
+        }
         out.put("requestId", rid);
-        out.put("target", target);
-        out.put("method", method);
-        out.put("args", args);
         Utils.debug("api request to %s: %s", name, out);
         cb.setRequestId(rid);
         requests.put(rid, cb);
-        sendMessage(out);
         
-        // setup delayed task to timeout the request on this side if we don't get a response
-        Utils.fireDelayed(new Runnable() {
+        // time the request out on this side if we don't get a response
+        cb.setTimeout(TimingWheel.schedule(new Runnable() {
             @Override
             public void run() {
-                Callback<Message> cb = requests.remove(rid);
-                if (cb != null) {
-                    cb.onFailure(new RemoteException("timeout"));
-                    Utils.debug("api request %s to %s timed out", rid, name);
-                }
+                final Callback<Message> cb = requests.remove(rid);
+                if (cb == null) return;
+                Utils.fire(new Runnable() {
+                    @Override
+                    public void run() {
+                        cb.onFailure(new RemoteException("timeout"));
+                        Utils.debug("api request %s to %s timed out", rid, name);
+                    }
+                });
             }
-        }, APIBackend.getTimeout());
-        
+        }, APIBackend.getTimeout()));
+
+        sendMessage(out);
     }
     
     // End remote commands
@@ -1056,32 +1362,10 @@ public final class Server implements OptionsListener, RemoteServer {
                     normalizedPrivateAddress.getAddress().getHostAddress() + ":" +
                     normalizedPrivateAddress.getPort());
 
-        // worlds
-        List<String> worlds = new ArrayList<String>();
-        for (World world : Global.plugin.getServer().getWorlds())
-            worlds.add(world.getName());
-        out.put("worlds", worlds);
-        
-        // players
-        List<Message> players = new ArrayList<Message>();
-        for (Player player : Global.plugin.getServer().getOnlinePlayers()) {
-            Message msg = new Message();
-            msg.put("name", player.getName());
-            msg.put("displayName", player.getDisplayName());
-            msg.put("worldName", player.getWorld().getName());
-            players.add(msg);
-        }
-        out.put("players", players);
-        
-        // gates
-        List<Message> gates = new ArrayList<Message>();
-        for (LocalGateImpl gate : Gates.getLocalGates()) {
-            Message gm = new Message();
-            gm.put("type", gate.getType().toString());
-            gm.put("name", gate.getLocalName());
-            gates.add(gm);
-        }
-        out.put("gates", gates);
+        if (message == null)
+            LocalState.getRefreshData(out, null, 0);
+        else
+            LocalState.getRefreshData(out, message.getString("stateEpoch"), message.getLong("stateVersion", 0));
 
         sendMessage(out);
     }
@@ -1100,48 +1384,80 @@ public final class Server implements OptionsListener, RemoteServer {
         remotePrivateAddress = message.getString("privateAddress");
         Utils.debug("received privateAddress '%s' from '%s'", remotePrivateAddress, getName());
 
+        boolean delta = message.getBoolean("delta", false);
+        String stateEpoch = message.getString("stateEpoch");
+        if (delta && ((stateEpoch == null) || (! stateEpoch.equals(remoteStateEpoch)) || (message.getLong("stateSince") != remoteStateVersion))) {
+            // we lost track somewhere, so start over
+            Utils.warning("received out of sequence state from '%s', requesting a full refresh", getName());
+            remoteStateEpoch = null;
+            remoteStateVersion = 0;
+            sendRefresh();
+            return;
+        }
+
         // worlds
         Collection<String> worlds = message.getStringList("worlds");
         if (worlds == null)
             throw new ServerException("world list required");
-        remoteWorlds.clear();
+        Set<String> names = new HashSet<String>();
         for (String worldName : worlds) {
             try {
                 RemoteWorldImpl world = new RemoteWorldImpl(this, worldName);
                 remoteWorlds.put(world.getName(), world);
+                names.add(world.getName());
             } catch (IllegalArgumentException iae) {
                 Utils.warning("received bad world from '%s'", getName());
             }
         }
-        Utils.debug("received %d worlds from '%s'", remoteWorlds.size(), getName());
+        if (delta) {
+            Collection<String> removed = message.getStringList("removedWorlds");
+            if (removed != null)
+                remoteWorlds.keySet().removeAll(removed);
+        } else
+            remoteWorlds.keySet().retainAll(names);
+        Utils.debug("received %d worlds from '%s'", names.size(), getName());
         
         // players
         Collection<Message> players = message.getMessageList("players");
         if (players == null)
             throw new ServerException("player list required");
-        remotePlayers.clear();
+        names.clear();
         for (Message msg : players) {
             try {
                 RemotePlayerImpl player = new RemotePlayerImpl(this, msg.getString("name"), msg.getString("displayName"), msg.getString("worldName"));
                 remotePlayers.put(player.getName(), player);
+                names.add(player.getName());
             } catch (IllegalArgumentException iae) {
                 Utils.warning("received bad player from '%s'", getName());
             }
         }
-        Utils.debug("received %d players from '%s'", remotePlayers.size(), getName());
+        if (delta) {
+            Collection<String> removed = message.getStringList("removedPlayers");
+            if (removed != null)
+                remotePlayers.keySet().removeAll(removed);
+        } else
+            remotePlayers.keySet().retainAll(names);
+        Utils.debug("received %d players from '%s'", names.size(), getName());
         
-        // gates
+        // gates, only touching the ones that changed so local gates aren't
+        // told about every remote gate again
         Collection<Message> gates = message.getMessageList("gates");
         if (gates == null)
             throw new ServerException("gate list required");
-        remoteGates.clear();
-        Gates.removeGatesForServer(this);
+        names.clear();
         for (Message gm : gates) {
             try {
                 String gTypeStr = gm.getString("type");
                 GateType gType = Utils.valueOf(GateType.class, gTypeStr);
                 String gName = gm.getString("name");
-                RemoteGateImpl gate = RemoteGateImpl.create(this, gType, gName);
+                RemoteGateImpl gate = remoteGates.get(gName);
+                if ((gate != null) && (gate.getType() == gType)) {
+                    names.add(gName);
+                    continue;
+                }
+                if (gate != null)
+                    removeRemoteGate(gName);
+                gate = RemoteGateImpl.create(this, gType, gName);
                 remoteGates.put(gate.getLocalName(), gate);
                 try {
                     Gates.add(gate, false);
@@ -1149,13 +1465,27 @@ public final class Server implements OptionsListener, RemoteServer {
                     remoteGates.remove(gate.getLocalName());
                     throw new IllegalArgumentException();
                 }
+                names.add(gate.getLocalName());
             } catch (GateException ge) {
                 Utils.warning("received bad gate from '%s'", getName());
             } catch (IllegalArgumentException iae) {
                 Utils.warning("received bad gate from '%s'", getName());
             }
         }
-        Utils.debug("received %d gates from '%s'", remoteGates.size(), getName());
+        if (delta) {
+            Collection<String> removed = message.getStringList("removedGates");
+            if (removed != null)
+                for (String gName : removed)
+                    removeRemoteGate(gName);
+        } else
+            for (String gName : new ArrayList<String>(remoteGates.keySet()))
+                if (! names.contains(gName))
+                    removeRemoteGate(gName);
+        Utils.debug("received %d gates from '%s'", names.size(), getName());
+
+        remoteStateEpoch = stateEpoch;
+        remoteStateVersion = message.getLong("stateVersion", 0);
+        Utils.debug("remote state from '%s' is now at version %d (%s)", getName(), remoteStateVersion, delta ? "delta" : "full");
         
         if (! readyForAPI) {
             readyForAPI = true;
@@ -1551,13 +1881,21 @@ public final class Server implements OptionsListener, RemoteServer {
     }
 
     private void receiveApiRequest(Message message) throws ServerException {
+        long rid = message.getLong("requestId");
+        List<Message> calls = message.getMessageList("calls");
+        if (calls != null) {
+            Message out = createMessage("apiResult");
+            out.put("requestId", rid);
+            out.put("results", APIBackend.invokeAll(calls));
+            sendMessage(out);
+            return;
+        }
         String target = message.getString("target");
         if (target == null)
             throw new ServerException("missing target");
         String method = message.getString("method");
         if (method == null)
             throw new ServerException("missing method");
-        long rid = message.getLong("requestId");
         Message args = message.getMessage("args");
         
         Message out = createMessage("apiResult");
@@ -1572,11 +1910,12 @@ public final class Server implements OptionsListener, RemoteServer {
     
     private void receiveApiResult(Message message) throws ServerException {
         long rid = message.getLong("requestId");
-        Callback<Message> cb = requests.remove(rid);
+        APICallback<Message> cb = requests.remove(rid);
         if (cb == null) {
             Utils.debug("received result for unknown api request %s from %s (maybe it timed out?)", rid, name);
             return;
         }
+        cb.getTimeout().cancel();
         String failure = message.getString("failure");
         if (failure != null)
             cb.onFailure(new RemoteException(failure));
@@ -1586,20 +1925,127 @@ public final class Server implements OptionsListener, RemoteServer {
     
     // Utility methods
 
+    private void removeRemoteGate(String gName) {
+        RemoteGateImpl gate = remoteGates.remove(gName);
+        if (gate == null) return;
+        try {
+            Gates.remove(gate);
+        } catch (GateException ge) {}
+    }
+
+    private void cancelRemoteStateExpiry() {
+        if (remoteStateTask != -1) {
+            Utils.cancelTask(remoteStateTask);
+            remoteStateTask = -1;
+        }
+    }
+
+    private void clearRemoteState() {
+        cancelRemoteStateExpiry();
+        Gates.removeGatesForServer(this);
+        remotePlayers.clear();
+        remoteGates.clear();
+        remoteWorlds.clear();
+        remoteStateEpoch = null;
+        remoteStateVersion = 0;
+    }
+
     private Message createMessage(String command) {
         Message m = new Message();
         m.put("command", command);
         return m;
     }
 
-    private void sendMessage(final Message message) {
-        Utils.debug("sending command '%s' to %s", message.getString("command", "<none>"), name);
-        Utils.worker(new Runnable() {
+    // Messages sent during a tick are collected and sent together in an
+    // envelope at the end of the tick, or sooner if there are a lot of them.
+    // Control messages, like reservations, skip the envelope and go out right
+    // away.
+    // While the connection is congested, bulk messages are dropped and
+    // messages that only carry the latest value of something skip the
+    // envelope so the connection can collapse them.
+    private void sendMessage(Message message) {
+        String command = message.getString("command", "<none>");
+        Utils.debug("sending command '%s' to %s", command, name);
+        int priority = getMessagePriority(command);
+        Connection conn = connection;
+        if ((conn != null) && conn.isCongested()) {
+            if (priority == Connection.PRIORITY_BULK) {
+                Utils.debug("dropping command '%s' to %s because the connection is congested", command, name);
+                peerStats.onMessageDropped();
+                return;
+            }
+            String collapseKey = getCollapseKey(command, message);
+            if (collapseKey != null) {
+                synchronized (envelope) {
+                    flushEnvelope();
+                }
+                sendQueue.add(message, priority, collapseKey);
+                return;
+            }
+        }
+        if ((conn == null) ||
+            (conn.getProtocolVersion() < ENVELOPE_PROTOCOL_VERSION) ||
+            (priority == Connection.PRIORITY_CONTROL)) {
+            sendQueue.add(message, priority);
+            return;
+        }
+        synchronized (envelope) {
+            envelope.add(message);
+            envelopePriority = Math.min(envelopePriority, priority);
+            if (envelope.size() >= ENVELOPE_MAX_COMMANDS) {
+                flushEnvelope();
+                return;
+            }
+            if (envelopeScheduled) return;
+            envelopeScheduled = true;
+        }
+        int taskId = Utils.fire(new Runnable() {
             @Override
             public void run() {
-                connection.sendMessage(message, true);
+                synchronized (envelope) {
+                    envelopeScheduled = false;
+                    flushEnvelope();
+                }
             }
         });
+        if (taskId == -1)
+            synchronized (envelope) {
+                envelopeScheduled = false;
+                flushEnvelope();
+            }
+    }
+
+    // must be called while synchronized on envelope
+    private void flushEnvelope() {
+        if (envelope.isEmpty()) return;
+        if (envelope.size() == 1)
+            sendQueue.add(envelope.get(0), envelopePriority);
+        else {
+            Message message = createMessage("envelope");
+            message.put("commands", new ArrayList<Message>(envelope));
+            sendQueue.add(message, envelopePriority);
+        }
+        envelope.clear();
+        envelopePriority = Connection.PRIORITY_BULK;
+    }
+
+    private static int getMessagePriority(String command) {
+        Integer priority = MESSAGE_PRIORITIES.get(command);
+        return (priority == null) ? Connection.PRIORITY_STATE : priority;
+    }
+
+    // Returns the key that identifies what the message is the latest value
+    // of, or null if the message is an event that must always be delivered.
+    private static String getCollapseKey(String command, Message message) {
+        if (command.equals("refresh"))
+            return command;
+        if (command.equals("refreshData"))
+            // a newer full or delta refresh from the same starting point
+            // covers everything in an older one
+            return command + ":" + message.getString("stateEpoch") + ":" + message.getLong("stateSince", 0);
+        if (command.equals("playerChangeWorld"))
+            return command + ":" + message.getString("player");
+        return null;
     }
 
     private void normalizePrivateAddress(String addrStr) {
@@ -1735,5 +2181,120 @@ public final class Server implements OptionsListener, RemoteServer {
         String connectTo;
         Set<Pattern> patterns;
     }
+
+    // A plugin's batch of API calls, which is also the callback for the
+    // batched request and hands its results out to the calls, in order. The
+    // batch only collects calls made from inside add, on the adding thread.
+    // Each call is timed out from when it's added, so calls in a batch that's
+    // never sent still fail, and whichever of its timeout or its result comes
+    // first is the only one the call sees.
+    private final class Batch extends APICallback<Message> implements RemoteBatch {
+
+        private final List<APICallback<Message>> calls = new ArrayList<APICallback<Message>>();
+        private final Set<APICallback<Message>> waiting = new HashSet<APICallback<Message>>();
+        private boolean sent = false;
+
+        @Override
+        public void add(Runnable task) {
+            Batch outer = batch.get();
+            batch.set(this);
+            try {
+                task.run();
+            } finally {
+                if (outer == null)
+                    batch.remove();
+                else
+                    batch.set(outer);
+            }
+        }
+
+        void addCall(final APICallback<Message> cb) {
+            synchronized (this) {
+                if (! sent) {
+                    calls.add(cb);
+                    waiting.add(cb);
+                    cb.setTimeout(TimingWheel.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (! take(cb)) return;
+                            Utils.fire(new Runnable() {
+                                @Override
+                                public void run() {
+                                    cb.onFailure(new RemoteException("timeout"));
+                                }
+                            });
+                        }
+                    }, APIBackend.getTimeout()));
+                    return;
+                }
+            }
+            sendAPICall(cb);
+        }
+
+        // Returns true if the call was still waiting for its result, which
+        // is now up to the caller to deliver.
+        private synchronized boolean take(APICallback<Message> cb) {
+            if (! waiting.remove(cb)) return false;
+            cb.getTimeout().cancel();
+            return true;
+        }
+
+        @Override
+        public void send() {
+            List<APICallback<Message>> sending = new ArrayList<APICallback<Message>>();
+            synchronized (this) {
+                if (sent) return;
+                sent = true;
+                // calls that already timed out are left out
+                for (APICallback<Message> cb : calls)
+                    if (waiting.contains(cb)) sending.add(cb);
+                calls.clear();
+                calls.addAll(sending);
+            }
+            if (sending.isEmpty()) return;
+            Connection conn = connection;
+            if ((sending.size() == 1) ||
+                (conn == null) ||
+                (conn.getProtocolVersion() < API_BATCH_PROTOCOL_VERSION)) {
+                for (APICallback<Message> cb : sending)
+                    if (take(cb)) sendAPICall(cb);
+                return;
+            }
+            List<Message> callMsgs = new ArrayList<Message>(sending.size());
+            for (APICallback<Message> cb : sending) {
+                Message call = new Message();
+                call.put("target", cb.getTarget());
+                call.put("method", cb.getMethod());
+                call.put("args", cb.getArgs());
+                callMsgs.add(call);
+            }
+            Message out = createMessage("apiRequest");
+            out.put("calls", callMsgs);
+            sendAPIRequest(this, out);
+        }
+
+        @Override
+        public void onSuccess(Message m) {
+            List<Message> results = m.getMessageList("results");
+            for (int i = 0; i < calls.size(); i++) {
+                APICallback<Message> cb = calls.get(i);
+                if (! take(cb)) continue;
+                Message result = ((results == null) || (i >= results.size())) ? null : results.get(i);
+                if (result == null)
+                    cb.onFailure(new RemoteException("missing result"));
+                else if (result.getString("failure") != null)
+                    cb.onFailure(new RemoteException(result.getString("failure")));
+                else
+                    cb.onSuccess(result);
+            }
+        }
+
+        @Override
+        public void onFailure(RemoteException re) {
+            for (APICallback<Message> cb : calls)
+                if (take(cb)) cb.onFailure(re);
+        }
+
+    }
     
 }
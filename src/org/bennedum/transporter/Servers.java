@@ -15,12 +15,16 @@
  */
 package org.bennedum.transporter;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.bennedum.transporter.api.RemoteServer;
 import org.bennedum.transporter.config.ConfigurationNode;
+import org.bennedum.transporter.net.Network;
 
 /**
  *
@@ -29,12 +33,19 @@ import org.bennedum.transporter.config.ConfigurationNode;
 public final class Servers {
 
     private static final int CONNECT_DELAY = 4000;
+    private static final int CONNECT_SPREAD = 4000;
 
     private static final Map<String,Server> servers = new HashMap<String,Server>();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // handshake key digest to server, rebuilt when any of the keys change
+    private static Map<String,Server> keyDigests = null;
+    private static String keyDigestsNetworkKey = null;
 
     public static void onConfigLoad(Context ctx) {
         removeAll();
         servers.clear();
+        keysChanged();
         List<ConfigurationNode> serverNodes = Config.getNodeList("servers");
         if (serverNodes != null) {
             for (ConfigurationNode node : serverNodes) {
@@ -61,6 +72,7 @@ public final class Servers {
         if (servers.containsKey(name))
             throw new ServerException("a server with the same name already exists");
         servers.put(server.getName(), server);
+        keysChanged();
         if (server.isEnabled())
             Utils.fireDelayed(new Runnable() {
                 @Override
@@ -74,6 +86,7 @@ public final class Servers {
         String name = server.getName();
         if (! servers.containsKey(name)) return;
         servers.remove(name);
+        keysChanged();
         server.disconnect(false);
     }
 
@@ -82,6 +95,8 @@ public final class Servers {
             remove(server);
     }
 
+    // Connects are spread out a little so a restarted server doesn't open
+    // everything at once. Network limits how many connect at a time anyway.
     public static void connectAll() {
         for (final Server server : servers.values()) {
             if ((! server.isConnectionConnected()) && server.isEnabled())
@@ -90,7 +105,7 @@ public final class Servers {
                     public void run() {
                         server.connect();
                     }
-                }, CONNECT_DELAY);
+                }, CONNECT_DELAY + (long)(Math.random() * CONNECT_SPREAD));
         }
     }
 
@@ -124,6 +139,45 @@ public final class Servers {
         return servers.size();
     }
 
+    // Returns the server whose key produces the digest a connecting server
+    // sent in its handshake, or null.
+    // can be called from any thread
+    public static synchronized Server findByKeyDigest(String digest) {
+        String networkKey = Network.getCachedKey();
+        if ((keyDigests == null) ||
+            ((networkKey == null) ? (keyDigestsNetworkKey != null) : (! networkKey.equals(keyDigestsNetworkKey)))) {
+            keyDigests = new HashMap<String,Server>();
+            keyDigestsNetworkKey = networkKey;
+            for (Server server : getAll()) {
+                String d = makeKeyDigest(server.getKey(), networkKey);
+                if (d != null) keyDigests.put(d, server);
+            }
+        }
+        return keyDigests.get(digest);
+    }
+
+    // called when a server is added or removed, or its key changes
+    public static synchronized void keysChanged() {
+        keyDigests = null;
+    }
+
+    // Returns the hex SHA1 digest of the two keys, or null if it can't be made.
+    public static String makeKeyDigest(String firstKey, String secondKey) {
+        try {
+            MessageDigest dig = MessageDigest.getInstance("SHA1");
+            byte[] out = dig.digest((firstKey + ":" + secondKey).getBytes("UTF-8"));
+            char[] hex = new char[out.length * 2];
+            for (int i = 0; i < out.length; i++) {
+                hex[i * 2] = HEX[(out[i] >> 4) & 0x0f];
+                hex[(i * 2) + 1] = HEX[out[i] & 0x0f];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            Utils.severe(e, "unable to create key digest");
+        } catch (UnsupportedEncodingException e) {}
+        return null;
+    }
+
     public static RemoteServer getRemoteServer(String name) {
         Server server = get(name);
         if (server == null)
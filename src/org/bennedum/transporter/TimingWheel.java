@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel for timeouts.
+ * <p>
+ * Timeouts are kept in a ring of buckets that a single thread walks one tick
+ * at a time, so scheduling and cancelling are cheap and nothing touches the
+ * Bukkit scheduler until a timeout actually fires. Timeouts are only
+ * accurate to a tick, which is plenty for request and reservation timeouts.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class TimingWheel {
+
+    private static final int TICK = 50;             // millis
+    private static final int WHEEL_SIZE = 512;      // must be a power of 2
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+    private static final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private static Thread thread = null;
+    private static volatile boolean running = false;
+    private static long startTime;
+    private static long tick;
+
+    // Runs the task on the timer thread after delay millis. The task must be
+    // quick and thread safe.
+    // can be called from any thread
+    public static Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + delay);
+        added.add(timeout);
+        start();
+        return timeout;
+    }
+
+    // Runs the task on the main thread after delay millis.
+    // can be called from any thread
+    public static Timeout scheduleMain(final Runnable task, long delay) {
+        return schedule(new Runnable() {
+            @Override
+            public void run() {
+                Utils.fire(task);
+            }
+        }, delay);
+    }
+
+    private static synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TimingWheel.run();
+            }
+        }, "Transporter timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // pending timeouts are dropped
+    public static synchronized void stop() {
+        if (! running) return;
+        running = false;
+        thread.interrupt();
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {}
+        }
+        thread = null;
+        added.clear();
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = null;
+    }
+
+    private static void run() {
+        startTime = System.currentTimeMillis();
+        tick = 0;
+        while (running) {
+            long sleep = (startTime + ((tick + 1) * TICK)) - System.currentTimeMillis();
+            if (sleep > 0)
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+            addTimeouts();
+            expireTimeouts((int)(tick & WHEEL_MASK));
+            tick++;
+        }
+    }
+
+    private static void addTimeouts() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long ticks = (timeout.deadline - startTime) / TICK;
+            timeout.rounds = (ticks - tick) / WHEEL_SIZE;
+            int bucket = (int)(Math.max(ticks, tick) & WHEEL_MASK);
+            timeout.next = wheel[bucket];
+            wheel[bucket] = timeout;
+        }
+    }
+
+    private static void expireTimeouts(int bucket) {
+        Timeout prev = null;
+        Timeout timeout = wheel[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || (timeout.rounds <= 0)) {
+                if (prev == null)
+                    wheel[bucket] = next;
+                else
+                    prev.next = next;
+                timeout.next = null;
+                if (! timeout.cancelled)
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        Utils.severe(t, "timeout task threw an exception: %s", t.getMessage());
+                    }
+            } else {
+                timeout.rounds--;
+                prev = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    public static final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // The task won't run if it hasn't already. The timeout is dropped the
+        // next time the wheel passes its bucket.
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+    }
+
+}
@@ -123,6 +123,7 @@ public class Transporter extends JavaPlugin {
         Global.enabled = false;
         Context ctx = new Context();
         Network.stop(ctx);
+        TimingWheel.stop();
         Config.save(ctx);
         Gates.save(ctx);
         ctx.sendLog("disabled");
@@ -16,6 +16,7 @@
 package org.bennedum.transporter;
 
 import org.bennedum.transporter.api.ReservationException;
+import org.bukkit.Location;
 import org.bukkit.entity.Player;
 import org.bukkit.entity.Vehicle;
 import org.bukkit.event.EventHandler;
@@ -32,7 +33,8 @@ public class VehicleListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onVehicleMove(VehicleMoveEvent event) {
         Vehicle vehicle = event.getVehicle();
-        LocalGateImpl fromGate = Gates.findGateForPortal(event.getTo());
+        Location to = event.getTo();
+        LocalGateImpl fromGate = Gates.findGateForPortal(to.getWorld(), to.getBlockX(), to.getBlockY(), to.getBlockZ());
         if (fromGate == null) {
             ReservationImpl.removeGateLock(vehicle);
             return;
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.api;
+
+/**
+ * A batch of calls to a remote server, sent in a single request.
+ * <p>
+ * A batch belongs to the plugin that created it with
+ * {@link RemoteServer#newBatch}. Only the calls the plugin makes inside
+ * {@link #add} go into the batch, and every other call to the server is sent
+ * as usual. For example:
+ * <pre>
+ * final RemoteServer server = ...;
+ * RemoteBatch batch = server.newBatch();
+ * batch.add(new Runnable() {
+ *     public void run() {
+ *         server.getVersion(versionCallback);
+ *         server.getServerId(idCallback);
+ *     }
+ * });
+ * batch.send();
+ * </pre>
+ * Each call still completes or fails on its own, and times out like any
+ * other call, counting from when it was added, whether or not the batch is
+ * ever sent.
+ * 
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public interface RemoteBatch {
+    
+    /**
+     * Runs the task, adding the calls it makes to the batch's server, its
+     * players, or its worlds to the batch.
+     * <p>
+     * Calls made after the batch has been sent are sent on their own.
+     * 
+     * @param task  the task that makes the calls
+     */
+    public void add(Runnable task);
+    
+    /**
+     * Sends the calls added to the batch.
+     * <p>
+     * A batch can only be sent once, and sending an empty batch does
+     * nothing.
+     */
+    public void send();
+    
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous call to a remote server.
+ * <p>
+ * Results of remote calls are delivered on the main server thread, so
+ * calling one of the <code>get</code> methods from the main thread before the
+ * call completes will block forever. Plugins running on the main thread should
+ * use {@link #addCallback} instead.
+ *
+ * @param <T>   the type of the result
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class RemoteFuture<T> extends Callback<T> implements Future<T> {
+
+    private State state = State.WAITING;
+    private T result = null;
+    private RemoteException failure = null;
+    private List<Callback<T>> callbacks = null;
+
+    /**
+     * Creates a new, incomplete future.
+     */
+    public RemoteFuture() {
+        super();
+    }
+
+    /**
+     * Adds a callback to be called when the call completes.
+     * <p>
+     * If the call has already completed, the callback is called immediately
+     * from the calling thread.
+     *
+     * @param cb    the callback
+     */
+    public void addCallback(Callback<T> cb) {
+        synchronized (this) {
+            if (state == State.WAITING) {
+                if (callbacks == null)
+                    callbacks = new ArrayList<Callback<T>>();
+                callbacks.add(cb);
+                return;
+            }
+        }
+        notifyCallback(cb);
+    }
+
+    /**
+     * Completes the future with the return value of the call.
+     *
+     * @param t     the return value of the asynchronous call
+     */
+    @Override
+    public void onSuccess(T t) {
+        synchronized (this) {
+            if (state != State.WAITING) return;
+            result = t;
+            state = State.COMPLETED;
+            notifyAll();
+        }
+        notifyCallbacks();
+    }
+
+    /**
+     * Completes the future with the exception from the call.
+     *
+     * @param e     the exception
+     */
+    @Override
+    public void onFailure(RemoteException e) {
+        synchronized (this) {
+            if (state != State.WAITING) return;
+            failure = e;
+            state = State.FAILED;
+            notifyAll();
+        }
+        notifyCallbacks();
+    }
+
+    /**
+     * Cancels the future.
+     * <p>
+     * The call may still be executed on the remote server, but its result
+     * will be ignored. Callbacks are not called when a future is cancelled.
+     *
+     * @param mayInterruptIfRunning ignored
+     * @return true if the future was cancelled
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (state != State.WAITING) return false;
+            state = State.CANCELLED;
+            callbacks = null;
+            notifyAll();
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != State.WAITING;
+    }
+
+    /**
+     * Waits for the call to complete and returns its result.
+     *
+     * @return the return value of the asynchronous call
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     * @throws ExecutionException if the call failed, with a {@link RemoteException} as the cause
+     * @throws CancellationException if the future was cancelled
+     */
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (state == State.WAITING)
+            wait();
+        return getResult();
+    }
+
+    /**
+     * Waits for the call to complete and returns its result.
+     *
+     * @param timeout   the maximum time to wait
+     * @param unit      the unit of the timeout argument
+     * @return the return value of the asynchronous call
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     * @throws ExecutionException if the call failed, with a {@link RemoteException} as the cause
+     * @throws TimeoutException if the call didn't complete in time
+     * @throws CancellationException if the future was cancelled
+     */
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (state == State.WAITING) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) throw new TimeoutException();
+            wait(wait);
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        switch (state) {
+            case COMPLETED: return result;
+            case FAILED: throw new ExecutionException(failure);
+            default: throw new CancellationException();
+        }
+    }
+
+    private void notifyCallbacks() {
+        List<Callback<T>> cbs;
+        synchronized (this) {
+            cbs = callbacks;
+            callbacks = null;
+        }
+        if (cbs == null) return;
+        for (Callback<T> cb : cbs)
+            notifyCallback(cb);
+    }
+
+    private void notifyCallback(Callback<T> cb) {
+        T r;
+        RemoteException f;
+        synchronized (this) {
+            if (state == State.CANCELLED) return;
+            r = result;
+            f = failure;
+        }
+        if (f != null)
+            cb.onFailure(f);
+        else
+            cb.onSuccess(r);
+    }
+
+    private enum State {
+        WAITING,
+        COMPLETED,
+        FAILED,
+        CANCELLED;
+    }
+
+}
@@ -75,6 +75,29 @@ public interface RemotePlayer {
      */
     public void sendRawMessage(Callback<Void> cb, String msg);
     
+    /**
+     * Returns the location where the player is located.
+     * 
+     * @return the pending location
+     */
+    public RemoteFuture<RemoteLocation> getRemoteLocation();
+    
+    /**
+     * Sends a message to the player.
+     * 
+     * @param msg   the message to send
+     * @return      a future that completes when the message has been sent
+     */
+    public RemoteFuture<Void> sendMessage(String msg);
+    
+    /**
+     * Sends a raw message to the player.
+     * 
+     * @param msg   the message to send
+     * @return      a future that completes when the message has been sent
+     */
+    public RemoteFuture<Void> sendRawMessage(String msg);
+    
     /**
      * Sends a private message to the player.
      * 
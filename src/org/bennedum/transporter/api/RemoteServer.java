@@ -135,6 +135,74 @@ public interface RemoteServer {
      * @param cb    the callback to use when the call completes
      */
     public void getVersion(Callback<String> cb);
+
+    /**
+     * Broadcasts a message to all players on the remote server with the specified permission.
+     * 
+     * @param message       the message
+     * @param permission    the permission
+     * @return              the pending number of players the message was sent to
+     */
+    public RemoteFuture<Integer> broadcast(String message, String permission);
+    
+    /**
+     * Broadcasts a message to all players on the remote server.
+     * 
+     * @param message       the message
+     * @return              the pending number of players the message was sent to
+     */
+    public RemoteFuture<Integer> broadcastMessage(String message);
+    
+    /**
+     * Executes a command on the remote server.
+     * 
+     * @param sender        the sender of the command
+     * @param commandLine   the command to execute
+     * @return              the pending result of the command
+     */
+    public RemoteFuture<Boolean> dispatchCommand(CommandSender sender, String commandLine);
+    
+    /**
+     * Returns the configured default game mode on the remote server.
+     * 
+     * @return the pending game mode
+     */
+    public RemoteFuture<GameMode> getDefaultGameMode();
+
+    /**
+     * Returns the configured name of the remote server.
+     * <p>
+     * This method returns the name of the remote server as configured in that
+     * server's properties file, like {@link #getName(Callback)}.
+     * 
+     * @return the pending name
+     */
+    public RemoteFuture<String> getRemoteName();
+    
+    /**
+     * Returns the Id of the remote server.
+     * 
+     * @return the pending Id
+     */
+    public RemoteFuture<String> getServerId();
+    
+    /**
+     * Returns the version of the remote server.
+     * 
+     * @return the pending version
+     */
+    public RemoteFuture<String> getVersion();
+    
+    /**
+     * Returns a new, empty batch of calls to the remote server.
+     * <p>
+     * The calls added to the batch are sent to the remote server in a single
+     * request when {@link RemoteBatch#send} is called, and the remote server
+     * answers all of them in a single response.
+     * 
+     * @return the new batch
+     */
+    public RemoteBatch newBatch();
     
     /* Options */
     
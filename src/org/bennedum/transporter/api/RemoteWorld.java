@@ -74,4 +74,39 @@ public interface RemoteWorld {
      */
     public void getTime(Callback<Long> cb);
     
+    /**
+     * Returns the difficulty setting of the world.
+     * 
+     * @return the pending difficulty
+     */
+    public RemoteFuture<Difficulty> getDifficulty();
+    
+    /**
+     * Returns the environment setting of the world.
+     * 
+     * @return the pending environment
+     */
+    public RemoteFuture<Environment> getEnvironment();
+    
+    /**
+     * Returns the full time of the world.
+     * 
+     * @return the pending full time
+     */
+    public RemoteFuture<Long> getFullTime();
+    
+    /**
+     * Returns the seed setting of the world.
+     * 
+     * @return the pending seed
+     */
+    public RemoteFuture<Long> getSeed();
+    
+    /**
+     * Returns the time setting of the world.
+     * 
+     * @return the pending time
+     */
+    public RemoteFuture<Long> getTime();
+    
 }
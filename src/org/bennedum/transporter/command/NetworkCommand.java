@@ -15,12 +15,22 @@
  */
 package org.bennedum.transporter.command;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import org.bennedum.transporter.Context;
+import org.bennedum.transporter.Global;
 import org.bennedum.transporter.Permissions;
+import org.bennedum.transporter.Server;
+import org.bennedum.transporter.Servers;
 import org.bennedum.transporter.api.TransporterException;
+import org.bennedum.transporter.net.Message;
 import org.bennedum.transporter.net.Network;
+import org.bennedum.transporter.net.PeerStats;
 import org.bukkit.command.Command;
 
 /**
@@ -30,6 +40,7 @@ import org.bukkit.command.Command;
 public class NetworkCommand  extends TrpCommandProcessor {
 
     private static final String GROUP = "network ";
+    private static final String STATS_FILE = "network-stats.json";
 
     @Override
     public boolean matches(Context ctx, Command cmd, List<String> args) {
@@ -40,9 +51,11 @@ public class NetworkCommand  extends TrpCommandProcessor {
     @Override
     public List<String> getUsage(Context ctx) {
         List<String> cmds = new ArrayList<String>();
-        cmds.add(getPrefix(ctx) + GROUP + "ban add <pattern>");
+        cmds.add(getPrefix(ctx) + GROUP + "ban add <pattern>|<cidr>");
         cmds.add(getPrefix(ctx) + GROUP + "ban remove <pattern>|*");
         cmds.add(getPrefix(ctx) + GROUP + "ban list");
+        cmds.add(getPrefix(ctx) + GROUP + "stats [<server>]");
+        cmds.add(getPrefix(ctx) + GROUP + "stats dump");
         cmds.add(getPrefix(ctx) + GROUP + "get <option>|*");
         cmds.add(getPrefix(ctx) + GROUP + "set <option> <value>");
 
@@ -76,6 +89,54 @@ public class NetworkCommand  extends TrpCommandProcessor {
             return;
         }
 
+        if ("stats".startsWith(subCmd)) {
+            Permissions.require(ctx.getPlayer(), "trp.network.stats");
+            if ((! args.isEmpty()) && args.get(0).toLowerCase().equals("dump")) {
+                dumpStats(ctx);
+                return;
+            }
+            List<Server> servers;
+            if (args.isEmpty())
+                servers = Servers.getAll();
+            else {
+                Server server = Servers.get(args.get(0));
+                if (server == null)
+                    throw new CommandException("unknown server '%s'", args.get(0));
+                servers = new ArrayList<Server>();
+                servers.add(server);
+            }
+            if (servers.isEmpty()) {
+                ctx.send("there are no servers");
+                return;
+            }
+            for (Server server : servers) {
+                PeerStats stats = server.getPeerStats();
+                Message m = server.getStats();
+                ctx.send("'%s': %s, protocol %d", server.getName(), server.isConnected() ? "connected" : "not connected", m.getInt("protocolVersion"));
+                if (stats.getRoundTripSamples() == 0)
+                    ctx.send("  rtt: no samples");
+                else
+                    ctx.send("  rtt: %d samples, last %s, avg %s, p50 %s, p99 %s",
+                            stats.getRoundTripSamples(),
+                            formatMillis(m.getMessage("rtt").getLong("last")),
+                            formatMillis(stats.getAverageRoundTrip()),
+                            formatPercentile(stats.getRoundTripPercentile(0.5)),
+                            formatPercentile(stats.getRoundTripPercentile(0.99)));
+                ctx.send("  in: %d frames, %d bytes, decrypt %dus, decode %dus",
+                        stats.getFramesIn(), stats.getBytesIn(), stats.getAverageDecryptTime(), stats.getAverageDecodeTime());
+                ctx.send("  out: %d frames, %d bytes, encode %dus, encrypt %dus",
+                        stats.getFramesOut(), stats.getBytesOut(), stats.getAverageEncodeTime(), stats.getAverageEncryptTime());
+                ctx.send("  queued: %d messages, %d frames, %d bytes, %d API requests",
+                        m.getInt("sendQueueDepth"), m.getInt("writeQueueDepth"), m.getLong("queuedBytes"), m.getInt("pendingAPIRequests"));
+                ctx.send("  backpressure: %s, %d times congested, %d dropped, %d collapsed",
+                        m.getBoolean("congested", false) ? "congested" : "flowing",
+                        stats.getCongestions(), stats.getMessagesDropped(), stats.getMessagesCollapsed());
+                ctx.send("  connects: %d, reconnects: %d, disconnects: %d",
+                        m.getInt("connects"), m.getInt("reconnects"), m.getInt("disconnects"));
+            }
+            return;
+        }
+
         if ("ban".startsWith(subCmd)) {
             if (args.isEmpty())
                 throw new CommandException("do what with bans?");
@@ -100,10 +161,10 @@ public class NetworkCommand  extends TrpCommandProcessor {
 
             if ("add".startsWith(subCmd)) {
                 Permissions.require(ctx.getPlayer(), "trp.network.ban.add");
-                if (Network.addBannedAddress(args.get(0)))
+                if (Network.addBannedAddress(pattern))
                     ctx.sendLog("added ban");
                 else
-                    throw new CommandException("'%s' is already banned");
+                    throw new CommandException("'%s' is already banned", pattern);
                 return;
             }
 
@@ -112,10 +173,10 @@ public class NetworkCommand  extends TrpCommandProcessor {
                 if (pattern.equals("*")) {
                     Network.removeAllBannedAddresses();
                     ctx.sendLog("removed all bans");
-                } else if (Network.removeBannedAddress(args.get(0)))
+                } else if (Network.removeBannedAddress(pattern))
                     ctx.sendLog("removed ban");
                 else
-                    throw new CommandException("'%s' is not banned");
+                    throw new CommandException("'%s' is not banned", pattern);
                 return;
             }
             throw new CommandException("do what with a ban?");
@@ -124,4 +185,37 @@ public class NetworkCommand  extends TrpCommandProcessor {
         throw new CommandException("do what with the network?");
     }
 
+    private void dumpStats(Context ctx) throws CommandException {
+        List<Message> servers = new ArrayList<Message>();
+        for (Server server : Servers.getAll())
+            servers.add(server.getStats());
+        Message out = new Message();
+        out.put("time", System.currentTimeMillis());
+        out.put("servers", servers);
+        File file = new File(Global.plugin.getDataFolder(), STATS_FILE);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(out.toJSON());
+            writer.write("\n");
+        } catch (IOException ioe) {
+            throw new CommandException("unable to write %s: %s", file, ioe.getMessage());
+        } finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                } catch (IOException ioe) {}
+        }
+        ctx.send("wrote network stats to %s", file);
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format("%.1fms", micros / 1000.0);
+    }
+
+    private static String formatPercentile(int millis) {
+        if (millis == Integer.MAX_VALUE) return ">2000ms";
+        return "<=" + millis + "ms";
+    }
+
 }
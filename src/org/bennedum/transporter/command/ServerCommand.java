@@ -110,6 +110,20 @@ public class ServerCommand extends TrpCommandProcessor {
                         ctx.send("    remoteCluster:        %s",
                                 (server.getRemoteCluster() == null) ?
                                     "-" : server.getRemoteCluster());
+                        ctx.send("    lastHeard:            %ds ago%s",
+                                (System.currentTimeMillis() - server.getConnection().getLastMessageReceivedTime()) / 1000,
+                                server.isSuspect() ? ", suspect" : "");
+                        ctx.send("    sendQueue:            %d (max %d), %d sent, %d dropped, %dus/msg",
+                                server.getSendQueue().getQueueDepth(),
+                                server.getSendQueue().getMaxQueueDepth(),
+                                server.getSendQueue().getMessagesSent(),
+                                server.getSendQueue().getMessagesDropped(),
+                                server.getSendQueue().getAverageEncodeTime());
+                        ctx.send("    outbound:             %d bytes, %s, %d dropped, %d collapsed",
+                                server.getConnection().getQueuedBytes(),
+                                server.getConnection().isCongested() ? "congested" : "flowing",
+                                server.getPeerStats().getMessagesDropped(),
+                                server.getPeerStats().getMessagesCollapsed());
                     }
                 }
             }
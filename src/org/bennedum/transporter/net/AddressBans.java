@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The set of banned addresses.
+ * <p>
+ * Each ban is either a CIDR block ("10.1.0.0/16", "2001:db8::/32"), or a
+ * regular expression matched against the textual remote address. Regular
+ * expressions that only match a single IPv4 address or a run of whole
+ * octets ("192\.168\.1\..*") are turned into CIDR blocks. CIDR blocks are
+ * kept in a binary prefix trie, so checking an address costs at most one
+ * step per address bit no matter how many bans there are. Only true
+ * patterns are left to be matched one at a time.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class AddressBans {
+
+    // exact address, with the dots escaped or not
+    private static final Pattern IPV4_EXACT = Pattern.compile("^(\\d{1,3})\\\\?\\.(\\d{1,3})\\\\?\\.(\\d{1,3})\\\\?\\.(\\d{1,3})$");
+    // one to three octets followed by anything
+    private static final Pattern IPV4_OCTETS = Pattern.compile("^((?:\\d{1,3}\\\\\\.){1,3})\\.[*+]$");
+
+    private final List<String> bans = new ArrayList<String>();
+    private Node ipv4 = new Node();
+    private Node ipv6 = new Node();
+    private List<Pattern> patterns = new ArrayList<Pattern>();
+
+    // Returns false if the ban is already present.
+    synchronized boolean add(String ban) throws PatternSyntaxException {
+        if (bans.contains(ban)) return false;
+        index(ban);
+        bans.add(ban);
+        return true;
+    }
+
+    synchronized boolean remove(String ban) {
+        if (! bans.remove(ban)) return false;
+        rebuild();
+        return true;
+    }
+
+    synchronized void clear() {
+        bans.clear();
+        rebuild();
+    }
+
+    synchronized List<String> getBans() {
+        return new ArrayList<String>(bans);
+    }
+
+    // called from the acceptor thread
+    synchronized boolean isBanned(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (find((bytes.length == 4) ? ipv4 : ipv6, bytes)) return true;
+        if (patterns.isEmpty()) return false;
+        String addr = address.getHostAddress();
+        for (Pattern p : patterns)
+            if (p.matcher(addr).matches()) return true;
+        return false;
+    }
+
+    private void rebuild() {
+        ipv4 = new Node();
+        ipv6 = new Node();
+        patterns = new ArrayList<Pattern>();
+        for (String ban : bans)
+            index(ban);
+    }
+
+    private void index(String ban) throws PatternSyntaxException {
+        Prefix prefix = parsePrefix(ban);
+        if (prefix == null)
+            patterns.add(Pattern.compile(ban));
+        else
+            insert((prefix.address.length == 4) ? ipv4 : ipv6, prefix.address, prefix.bits);
+    }
+
+    private static Prefix parsePrefix(String ban) {
+        int pos = ban.indexOf('/');
+        if (pos != -1) {
+            byte[] address = parseAddress(ban.substring(0, pos));
+            if (address == null) return null;
+            int bits;
+            try {
+                bits = Integer.parseInt(ban.substring(pos + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if ((bits < 0) || (bits > (address.length * 8))) return null;
+            return new Prefix(address, bits);
+        }
+
+        Matcher matcher = IPV4_EXACT.matcher(ban);
+        if (matcher.matches()) {
+            byte[] address = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                int octet = Integer.parseInt(matcher.group(i + 1));
+                if (octet > 255) return null;
+                address[i] = (byte)octet;
+            }
+            return new Prefix(address, 32);
+        }
+
+        matcher = IPV4_OCTETS.matcher(ban);
+        if (matcher.matches()) {
+            String[] octets = matcher.group(1).split("\\\\\\.");
+            byte[] address = new byte[4];
+            for (int i = 0; i < octets.length; i++) {
+                int octet = Integer.parseInt(octets[i]);
+                if (octet > 255) return null;
+                address[i] = (byte)octet;
+            }
+            return new Prefix(address, octets.length * 8);
+        }
+        return null;
+    }
+
+    // Parses a literal IPv4 or IPv6 address without doing any name lookups.
+    private static byte[] parseAddress(String str) {
+        if (str.indexOf(':') != -1) {
+            for (int i = 0; i < str.length(); i++)
+                if ("0123456789abcdefABCDEF:.".indexOf(str.charAt(i)) == -1) return null;
+            try {
+                InetAddress address = InetAddress.getByName(str);
+                return (address instanceof Inet6Address) ? address.getAddress() : null;
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        String[] parts = str.split("\\.", -1);
+        if (parts.length != 4) return null;
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            if ((parts[i].length() == 0) || (parts[i].length() > 3)) return null;
+            int octet;
+            try {
+                octet = Integer.parseInt(parts[i]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if ((octet < 0) || (octet > 255)) return null;
+            address[i] = (byte)octet;
+        }
+        return address;
+    }
+
+    private static void insert(Node node, byte[] address, int bits) {
+        for (int i = 0; i < bits; i++) {
+            if (node.banned) return;    // already covered by a shorter prefix
+            int bit = (address[i >> 3] >> (7 - (i & 7))) & 1;
+            if (node.children[bit] == null)
+                node.children[bit] = new Node();
+            node = node.children[bit];
+        }
+        node.banned = true;
+        node.children[0] = node.children[1] = null;
+    }
+
+    private static boolean find(Node node, byte[] address) {
+        int bits = address.length * 8;
+        for (int i = 0; node != null; i++) {
+            if (node.banned) return true;
+            if (i == bits) return false;
+            node = node.children[(address[i >> 3] >> (7 - (i & 7))) & 1];
+        }
+        return false;
+    }
+
+    private static final class Node {
+        final Node[] children = new Node[2];
+        boolean banned = false;
+    }
+
+    private static final class Prefix {
+        final byte[] address;
+        final int bits;
+        Prefix(byte[] address, int bits) {
+            this.address = address;
+            this.bits = bits;
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bennedum.transporter.Global;
+import org.bennedum.transporter.Utils;
+
+/**
+ * TCP transport with a reader and a writer thread per connection.
+ * <p>
+ * Each connection does plain blocking socket I/O on its own threads, so a
+ * slow or stuck connection can't hold up any other. The reader blocks in
+ * read and feeds the connection as data arrives. The writer sleeps until the
+ * connection has something queued and then writes it all out. The network
+ * manager still accepts connections.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class BlockingTransport implements Transport {
+
+    static final BlockingTransport INSTANCE = new BlockingTransport();
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private final Map<Connection,Link> links = new HashMap<Connection,Link>();
+
+    private BlockingTransport() {}
+
+    @Override
+    public void open(final Connection conn) {
+        final Link link = new Link(conn);
+        synchronized (links) {
+            links.put(conn, link);
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SocketChannel channel = null;
+                try {
+                    InetSocketAddress address = Network.makeInetSocketAddress(conn.getConnectAddress(), "localhost", Global.DEFAULT_PLUGIN_PORT, false);
+                    channel = SocketChannel.open();
+                    Network.configureSocket(channel);
+                    conn.onOpening(channel);
+                    channel.socket().connect(address, CONNECT_TIMEOUT);
+                } catch (Exception e) {
+                    link.kill(false);
+                    conn.onException(e);
+                    return;
+                }
+                if (! link.start(channel)) {
+                    // closed while connecting
+                    link.kill(true);
+                    return;
+                }
+                conn.onOpened();
+                link.read();
+            }
+        }, "Transporter reader " + conn.getName());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // called from the acceptor thread
+    void accept(final Connection conn, SocketChannel channel) throws IOException {
+        channel.configureBlocking(true);
+        final Link link = new Link(conn);
+        synchronized (links) {
+            links.put(conn, link);
+        }
+        link.start(channel);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                link.read();
+            }
+        }, "Transporter reader " + conn.getName());
+        t.setDaemon(true);
+        t.start();
+        conn.onAccepted();
+    }
+
+    @Override
+    public void close(Connection conn) {
+        Link link = getLink(conn);
+        if (link == null)
+            // never opened, let the network manager clean it up
+            Network.close(conn);
+        else
+            link.close();
+    }
+
+    @Override
+    public void abort(Connection conn) {
+        Link link = getLink(conn);
+        if (link == null)
+            Network.close(conn);
+        else
+            link.abort();
+    }
+
+    @Override
+    public void wantWrite(Connection conn) {
+        Link link = getLink(conn);
+        if (link != null) link.wantWrite();
+    }
+
+    @Override
+    public boolean isConnected(Connection conn) {
+        return SocketTransport.INSTANCE.isConnected(conn);
+    }
+
+    @Override
+    public String getLocalKey() {
+        return SocketTransport.INSTANCE.getLocalKey();
+    }
+
+    @Override
+    public Peer findPeer(String keyDigest) {
+        return SocketTransport.INSTANCE.findPeer(keyDigest);
+    }
+
+    int getConnectionCount() {
+        synchronized (links) {
+            return links.size();
+        }
+    }
+
+    // can be called from any thread
+    void closeAll() {
+        List<Link> all;
+        synchronized (links) {
+            all = new ArrayList<Link>(links.values());
+        }
+        for (Link link : all)
+            link.conn.close();
+    }
+
+    private Link getLink(Connection conn) {
+        synchronized (links) {
+            return links.get(conn);
+        }
+    }
+
+    private final class Link implements Runnable {
+
+        private final Connection conn;
+        private SocketChannel channel = null;
+        private boolean writeWanted = false;
+        private boolean closing = false;
+        private boolean aborted = false;
+        private boolean killed = false;
+
+        Link(Connection conn) {
+            this.conn = conn;
+        }
+
+        // Returns false if the link was closed before it started.
+        boolean start(SocketChannel channel) {
+            synchronized (this) {
+                this.channel = channel;
+                if (closing) return false;
+            }
+            Thread t = new Thread(this, "Transporter writer " + conn.getName());
+            t.setDaemon(true);
+            t.start();
+            return true;
+        }
+
+        synchronized void wantWrite() {
+            writeWanted = true;
+            notifyAll();
+        }
+
+        // A link that's still connecting is cleaned up by its reader once
+        // the connect finishes. The connection aborts the link if the writer
+        // hasn't drained it in time.
+        synchronized void close() {
+            closing = true;
+            notifyAll();
+        }
+
+        // Closing the channel knocks the reader out of its read and the
+        // writer out of a write the peer isn't taking, and whichever gets
+        // there first kills the link.
+        void abort() {
+            SocketChannel ch;
+            synchronized (this) {
+                if (killed) return;
+                closing = aborted = true;
+                notifyAll();
+                ch = channel;
+            }
+            if (ch != null)
+                try {
+                    ch.close();
+                } catch (IOException e) {}
+        }
+
+        // the reader
+        void read() {
+            int readBufferSize = Network.getCachedReadBufferSize();
+            try {
+                while (true) {
+                    ByteBuffer buffer = conn.getReadBuffer(readBufferSize);
+                    int numRead = channel.read(buffer);
+                    if (numRead == -1) break;
+                    Utils.debug("read %d from %s", numRead, conn);
+                    conn.onReadData();
+                }
+            } catch (IOException e) {
+                if (! isStopped())
+                    conn.onException(e);
+            }
+            kill(true);
+        }
+
+        // the writer
+        @Override
+        public void run() {
+            int batchSize;
+            try {
+                batchSize = channel.socket().getSendBufferSize();
+            } catch (SocketException e) {
+                batchSize = Network.getCachedReadBufferSize();
+            }
+            while (true) {
+                synchronized (this) {
+                    while ((! writeWanted) && (! closing) && (! killed))
+                        try {
+                            wait();
+                        } catch (InterruptedException ie) {}
+                    if (killed) return;
+                    writeWanted = false;
+                }
+                try {
+                    ByteBuffer[] buffers;
+                    while ((buffers = conn.onGetWriteData(batchSize)) != null) {
+                        // a blocking channel may still write less than asked
+                        long numWrote = 0;
+                        while (buffers[buffers.length - 1].hasRemaining())
+                            numWrote += channel.write(buffers);
+                        Utils.debug("wrote %d to %s", numWrote, conn);
+                        conn.onWroteData(buffers);
+                    }
+                } catch (IOException e) {
+                    if (! isStopped())
+                        conn.onException(e);
+                    kill(true);
+                    return;
+                }
+                synchronized (this) {
+                    if (closing && (! conn.onHasWriteData())) break;
+                }
+                conn.onWriteCompleted();
+            }
+            kill(true);
+        }
+
+        // killed or aborted
+        synchronized boolean isStopped() {
+            return killed || aborted;
+        }
+
+        // Closing the channel knocks the reader out of its read.
+        void kill(boolean notify) {
+            synchronized (this) {
+                if (killed) return;
+                killed = true;
+                notifyAll();
+            }
+            synchronized (links) {
+                links.remove(conn);
+            }
+            Utils.debug("kill %s", conn);
+            if (channel != null)
+                try {
+                    channel.close();
+                } catch (IOException e) {}
+            if (notify) {
+                conn.onKilled();
+                conn.onClosed();
+            }
+        }
+
+    }
+
+}
@@ -46,16 +46,19 @@ public final class Cipher {
     // changed if you ever expect to decrypt something you've already
     // encrypted before the value was changed!
     private static long randomSeed = 4587243876L;
-    private static final List<Byte> scramble;
+    private static final byte[] scramble = new byte[256];
+    // position of each byte value (offset by 128) in scramble
+    private static final int[] scrambleIndex = new int[256];
 
     static {
         List<Byte> seed = new ArrayList<Byte>(256);
-        scramble = new ArrayList<Byte>(256);
         for (int i = 0; i < 256; i++)
             seed.add((byte)(i + Byte.MIN_VALUE));
-        while (seed.size() > 0)
-            //scramble.add(seed.remove(random(seed.size())));
-            scramble.add(seed.remove(0));
+        for (int i = 0; i < 256; i++)
+            //scramble[i] = seed.remove(random(seed.size()));
+            scramble[i] = seed.remove(0);
+        for (int i = 0; i < 256; i++)
+            scrambleIndex[scramble[i] - Byte.MIN_VALUE] = i;
     }
 
     // Use a custom random number generator because we can't rely on the
@@ -234,8 +237,8 @@ public final class Cipher {
         if (mode == None)
             throw new IllegalStateException("encrypt/decrypt mode not set");
 
-        int posIn = scramble.indexOf(data);
-        int adj = scramble.indexOf(key[keyIndex++]);
+        int posIn = scrambleIndex[data - Byte.MIN_VALUE];
+        int adj = scrambleIndex[key[keyIndex++] - Byte.MIN_VALUE];
         if (keyIndex >= key.length) keyIndex = 0;
 
         factor1 = factor2 + adj;
@@ -246,15 +249,15 @@ public final class Cipher {
         else
             posOut = posIn - factor1;
 
-        posOut = (posOut % scramble.size());
-        if (posOut < 0) posOut += scramble.size();
+        posOut = (posOut % scramble.length);
+        if (posOut < 0) posOut += scramble.length;
 
         if (mode == Encrypt)
             factor2 = factor1 + posOut;
         else
             factor2 = factor1 + posIn;
 
-        buffer.write(scramble.get(posOut));
+        buffer.write(scramble[posOut]);
     }
 
     /**
@@ -275,7 +278,7 @@ public final class Cipher {
      */
     public void update(byte[] data, int offset, int length) {
         if (data == null) return;
-        for (int i = offset; i < (i + length); i++)
+        for (int i = offset; i < (offset + length); i++)
             update(data[i]);
     }
 
@@ -19,18 +19,21 @@ import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Formatter;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.bennedum.transporter.ConcurrentLongMap;
 import org.bennedum.transporter.Global;
-import org.bennedum.transporter.Server;
 import org.bennedum.transporter.Servers;
+import org.bennedum.transporter.TimingWheel;
 import org.bennedum.transporter.Utils;
 
 /**
@@ -40,35 +43,89 @@ import org.bennedum.transporter.Utils;
 public final class Connection {
 
     private static final int HANDSHAKE_TIMEOUT = 5000;
-    private static final int PROTOCOL_VERSION = 8;
+    private static final int CLOSE_TIMEOUT = 5000;
+    private static final int PROTOCOL_VERSION = 10;
+    private static final int MIN_PROTOCOL_VERSION = 8;
+    private static final int BINARY_PROTOCOL_VERSION = 9;
+    private static final int SESSION_PROTOCOL_VERSION = 9;
+    private static final int COMPRESSION_PROTOCOL_VERSION = 9;
     public static final int PROTOCOL_TIMEOUT = 8000;    // 8 seconds
 
+    // Outbound frames wait in one lane per priority. Control frames always go
+    // first, and state frames get STATE_WEIGHT turns for every bulk frame so
+    // a long run of state changes can't starve chat completely.
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_STATE = 1;
+    public static final int PRIORITY_BULK = 2;
+    private static final int LANES = 3;
+    private static final int STATE_WEIGHT = 4;
+    private static final int DEFAULT_FILL_SIZE = 65536;
+
     private static final byte ENCRYPTED_FLAG = 0x01;
+    private static final byte BINARY_FLAG = 0x02;
+    private static final byte SESSION_FLAG = 0x04;
+    private static final byte COMPRESSED_FLAG = 0x08;
     private static final int CIPHER_PAD_SIZE = 256;
+    private static final String COMPRESSION = "deflate";
+    private static final int MAX_INFLATED_SIZE = 0x00ffffff;
+    private static final int MIN_INFLATE_BUFFER = 4096;
 
+    private final Transport transport;
     private SocketChannel channel;
     private String name = null;
-    private Server server = null;
+    private Peer server = null;
     private boolean incoming = false;
     private String connectAddress;
     private State state = State.NONE;
-    private long lastMessageSentTime = 0;
-    private long lastMessageReceivedTime = 0;
+    private volatile boolean killed = false;
+    private int protocolVersion = MIN_PROTOCOL_VERSION;
+    private volatile long lastMessageSentTime = 0;
+    private volatile long lastMessageReceivedTime = 0;
+
+    private String nonce = null;
+    private SessionCipher session = null;
+    private Cipher legacyEncrypt = null;
+    private Cipher legacyDecrypt = null;
+    private int compressionThreshold = 0;
+    private Deflater deflater = null;
+    private Inflater inflater = null;
 
-    private byte[] readBuffer = null;
-    private final List<byte[]> writeBuffers = new ArrayList<byte[]>();
+    private NetworkSelector selector = null;
+    private ByteBuffer readBuffer = null;
+    private int readBufferSize = 0;
+    private final List<byte[]> readFrames = new ArrayList<byte[]>();
+    private boolean decoding = false;
+    private final ArrayDeque<ByteBuffer> writeBuffers = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Frame>[] lanes = createLanes();
+    private int stateRun = 0;
+    private long queuedBytes = 0;
+    private long bufferedBytes = 0;
+    private int fillSize = DEFAULT_FILL_SIZE;
+    private boolean filling = false;
+    private boolean aborted = false;
+    private volatile boolean congested = false;
+    private int highWaterMark = 0;
+    private int lowWaterMark = 0;
+    private int queueLimit = 0;
 
     private int nextRequestId = 1;
-    private final Map<Integer,Result> requests = new HashMap<Integer,Result>();
+    private final ConcurrentLongMap<Result> requests = new ConcurrentLongMap<Result>();
 
     // For incoming connections
     public Connection(SocketChannel channel) {
+        this(SocketTransport.INSTANCE, channel);
+    }
+
+    // For incoming connections on a socket transport
+    Connection(Transport transport, SocketChannel channel) {
+        this.transport = transport;
         this.channel = channel;
         incoming = true;
     }
 
     // For outgoing connections
-    public Connection(Server server, String address) {
+    public Connection(Peer server, String address) {
+        transport = Network.getCachedTransport();
         this.server = server;
         this.connectAddress = address;
         try {
@@ -77,6 +134,21 @@ public final class Connection {
         } catch (Exception e) {}
     }
 
+    // For incoming connections over another transport
+    public Connection(Transport transport, String name) {
+        this.transport = transport;
+        this.name = name;
+        incoming = true;
+    }
+
+    // For outgoing connections over another transport
+    public Connection(Transport transport, Peer server, String address) {
+        this.transport = transport;
+        this.server = server;
+        this.connectAddress = address;
+        name = address;
+    }
+
     public boolean isIncoming() {
         return incoming;
     }
@@ -100,6 +172,36 @@ public final class Connection {
         return lastMessageReceivedTime;
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public String getCipherName() {
+        return (session == null) ? "legacy" : session.getName();
+    }
+
+    // Returns true while the outbound queue is over the high water mark and
+    // hasn't yet drained below the low water mark.
+    public boolean isCongested() {
+        return congested;
+    }
+
+    // Returns the number of bytes waiting to be written.
+    public long getQueuedBytes() {
+        synchronized (writeBuffers) {
+            return queuedBytes;
+        }
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    private PeerStats getStats() {
+        Peer s = server;
+        return (s == null) ? null : s.getPeerStats();
+    }
+
 
     @Override
     public String toString() {
@@ -120,6 +222,14 @@ public final class Connection {
         this.channel = channel;
     }
 
+    NetworkSelector getSelector() {
+        return selector;
+    }
+
+    void setSelector(NetworkSelector selector) {
+        this.selector = selector;
+    }
+
     public void onException(Exception e) {
         if (e instanceof ConnectException) {
             if ((server != null) && (! server.connectionMessagesSuppressed()))
@@ -133,27 +243,34 @@ public final class Connection {
     public void onOpened() {
         state = State.HANDSHAKE;
         // send the handshake message
+        // older peers require an exact protocolVersion match, so advertise
+        // the oldest version we speak and let newer peers pick up the max
         Message message = new Message();
-        message.put("protocolVersion", PROTOCOL_VERSION);
+        message.put("protocolVersion", MIN_PROTOCOL_VERSION);
+        message.put("maxProtocolVersion", PROTOCOL_VERSION);
         message.put("pluginVersion", Global.pluginVersion);
+        if (Network.getCipher().equals(SessionCipher.NAME)) {
+            nonce = SessionCipher.createNonce();
+            message.put("cipher", SessionCipher.NAME);
+            message.put("nonce", nonce);
+        }
+        if (Network.getCompressionThreshold() > 0)
+            message.put("compression", COMPRESSION);
 
-        try {
-            MessageDigest dig = MessageDigest.getInstance("SHA1");
-            Formatter f = new Formatter();
-            byte[] out = dig.digest((Network.getCachedKey() + ":" + server.getKey()).getBytes("UTF-8"));
-            for (Byte b : out) f.format("%02x", b);
-            message.put("key", f.toString());
-            sendMessage(message, false);
-        } catch (NoSuchAlgorithmException e) {
-            Utils.severe(e, "unable to create handshake message");
-        } catch (UnsupportedEncodingException e) {}
+        String key = Servers.makeKeyDigest(transport.getLocalKey(), server.getKey());
+        if (key == null) {
+            Utils.severe("unable to create handshake message");
+            return;
+        }
+        message.put("key", key);
+        sendMessage(message, false);
     }
 
     // incoming connection, we're the server
     public void onAccepted() {
         Utils.info("accepted a connection from %s", getName());
         state = State.HANDSHAKE;
-        Utils.fireDelayed(new Runnable() {
+        TimingWheel.schedule(new Runnable() {
             @Override
             public void run() {
                 if (state == State.HANDSHAKE) {
@@ -164,104 +281,312 @@ public final class Connection {
         }, HANDSHAKE_TIMEOUT);
     }
 
-    public void onReadData(byte[] data) {
-        if (state == State.CLOSED) return;
-
+    // Returns the buffer the next socket read should fill. The buffer is
+    // always left in "fill" mode with some space remaining.
+    public ByteBuffer getReadBuffer(int size) {
         if (readBuffer == null)
-            readBuffer = data;
-        else {
-            int oldSize = readBuffer.length;
-            readBuffer = Arrays.copyOf(readBuffer, oldSize + data.length);
-            System.arraycopy(data, 0, readBuffer, oldSize, data.length);
+            readBuffer = ByteBuffer.allocate(size);
+        else if (! readBuffer.hasRemaining()) {
+            // a frame larger than the buffer is still arriving
+            ByteBuffer buffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            buffer.put(readBuffer);
+            readBuffer = buffer;
         }
+        readBufferSize = size;
+        return readBuffer;
+    }
+
+    // Complete frames are copied out of the read buffer and handed to the
+    // decoder threads. Only a trailing partial frame is moved, and only when
+    // there is one.
+    public void onReadData() {
+        if (state == State.CLOSED) return;
+        PeerStats stats = getStats();
 
-        // extract and process all records received
-        while (readBuffer.length >= 4) {
-            byte flags = readBuffer[0];
-            int recLenNew =
-                    (0x00ff0000 & (Utils.unsignedByteToInt(readBuffer[1]) << 16)) +
-                    (0x0000ff00 & (Utils.unsignedByteToInt(readBuffer[2]) << 8)) +
-                    (0x000000ff & Utils.unsignedByteToInt(readBuffer[3]));
+        readBuffer.flip();
+        byte[] buf = readBuffer.array();
+
+        // extract all records received
+        while (readBuffer.remaining() >= 4) {
+            int pos = readBuffer.position();
+            byte flags = buf[pos];
             int recLen =
-                    (0x00ff0000 & ((int)readBuffer[1] << 16)) +
-                    (0x0000ff00 & ((int)readBuffer[2] << 8)) +
-                    (0x000000ff & (int)readBuffer[3]);
-            if (recLen < 0) {
-                Utils.warning("received invalid message length from %s", name);
-                close();
-                return;
+                    (Utils.unsignedByteToInt(buf[pos + 1]) << 16) +
+                    (Utils.unsignedByteToInt(buf[pos + 2]) << 8) +
+                    Utils.unsignedByteToInt(buf[pos + 3]);
+            if (readBuffer.remaining() < (recLen + 4)) {
+                // make sure the whole frame will fit
+                if (readBuffer.capacity() < (recLen + 4)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(recLen + 4);
+                    buffer.put(readBuffer);
+                    readBuffer = buffer;
+                    // the new buffer is ready to fill, but the frames ahead
+                    // of this one still need decoding
+                    decodeFrames();
+                    return;
+                }
+                break;
             }
-            if (readBuffer.length >= (recLen + 4)) {
-                try {
-                    byte[] messageData = Arrays.copyOfRange(readBuffer, 4, recLen + 4);
-                    byte[] clearData = messageData;
-                    if ((flags & ENCRYPTED_FLAG) == ENCRYPTED_FLAG) {
-                        Cipher cipher = new Cipher(CIPHER_PAD_SIZE);
-                        cipher.initDecrypt(Network.getCachedKey().getBytes("UTF-8"));
-                        messageData = cipher.doFinal(messageData);
+            readBuffer.position(pos + 4 + recLen);
+            if (stats != null)
+                stats.onFrameRead(recLen + 4);
+            byte[] frame = new byte[recLen + 4];
+            System.arraycopy(buf, pos, frame, 0, frame.length);
+            synchronized (readFrames) {
+                readFrames.add(frame);
+            }
+        }
+        decodeFrames();
+
+        if (! readBuffer.hasRemaining()) {
+            // drop back to the normal size after a large frame
+            if (readBuffer.capacity() > (readBufferSize * 4))
+                readBuffer = null;
+            else
+                readBuffer.clear();
+        } else if (readBuffer.position() == 0) {
+            // nothing consumed, just keep filling
+            readBuffer.position(readBuffer.limit());
+            readBuffer.limit(readBuffer.capacity());
+        } else
+            readBuffer.compact();
+    }
+
+    // Frames from a connection are decoded one at a time, in order, but off
+    // the selector thread so a slow decrypt only holds up its own connection.
+    private void decodeFrames() {
+        synchronized (readFrames) {
+            if (decoding || readFrames.isEmpty()) return;
+            decoding = true;
+        }
+        Network.decode(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    List<byte[]> frames;
+                    synchronized (readFrames) {
+                        if (readFrames.isEmpty() || (state == State.CLOSED)) {
+                            readFrames.clear();
+                            decoding = false;
+                            return;
+                        }
+                        frames = new ArrayList<byte[]>(readFrames);
+                        readFrames.clear();
                     }
-                    String encoded = new String(messageData, "UTF-8");
-                    try {
-                        Message message = Message.decode(encoded);
-                        if (message != null)
-                            onMessage(message);
-                    } catch (StringIndexOutOfBoundsException e) {
-                        Utils.severe("Got a StringIndexOutOfBounds, dumping debug state!!!");
-                        Utils.severe("flags=%s", flags);
-                        Utils.severe("recLen bytes: %s %s %s",
-                            (0x00ff0000 & ((long)readBuffer[1] << 16)),
-                            (0x0000ff00 & ((long)readBuffer[2] << 8)),
-                            (0x000000ff & (long)readBuffer[3])
-                        );
-                        Utils.severe("recLen=%s", recLen);
-                        Utils.severe("recLenNew=%s", recLenNew);
-                        Utils.severe("readBuffer.length=%s", readBuffer.length);
-                        Utils.severe("clearData.length=%s", clearData.length);
-                        Utils.severe("messageData.length=%s", messageData.length);
-                        Utils.severe("encoded.length=%s", encoded.length());
-                        Utils.severe("encoded=%s", encoded);
-                        Utils.severe("first 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, 0, 16));
-                        Utils.severe("last 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, clearData.length - 16, 16));
-                        Utils.severe("first 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, 0, 16));
-                        Utils.severe("last 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, messageData.length - 16, 16));
-                        Utils.severe("first 16 bytes of readBuffer: %s", Utils.byteArrayToString(readBuffer, 0, 16));
-                        Utils.severe("next 16 bytes of readBuffer: %s", Utils.byteArrayToString(readBuffer, recLen + 4, 16));
-                        throw e;
+                    for (byte[] frame : frames) {
+                        if (state == State.CLOSED) break;
+                        if (! onFrame(frame[0], frame, 4, frame.length - 4)) break;
                     }
-                } catch (Throwable t) {
-                    Utils.severe(t, "exception while processing message from %s: %s", name, t.getMessage());
-                    close();
-                    return;
                 }
-                if ((recLen + 4) == readBuffer.length) {
-                    readBuffer = null;
-                    break;
-                } else
-                    readBuffer = Arrays.copyOfRange(readBuffer, recLen + 4, readBuffer.length);
-            } else
+            }
+        });
+    }
+
+    private boolean onFrame(byte flags, byte[] buf, int offset, int length) {
+        try {
+            long startTime = System.nanoTime();
+            byte[] messageData = buf;
+            int messageOffset = offset;
+            int messageLength = length;
+            if ((flags & SESSION_FLAG) == SESSION_FLAG) {
+                if (session == null)
+                    throw new NetworkException("received session encrypted message without a session");
+                messageData = session.decrypt(flags, buf, offset, length);
+                messageOffset = 0;
+                messageLength = messageData.length;
+            } else if ((flags & ENCRYPTED_FLAG) == ENCRYPTED_FLAG) {
+                if (legacyDecrypt == null)
+                    legacyDecrypt = new Cipher(CIPHER_PAD_SIZE);
+                legacyDecrypt.initDecrypt(transport.getLocalKey().getBytes("UTF-8"));
+                legacyDecrypt.update(buf, offset, length);
+                messageData = legacyDecrypt.doFinal();
+                messageOffset = 0;
+                messageLength = messageData.length;
+            }
+            long decryptedTime = System.nanoTime();
+            if ((flags & COMPRESSED_FLAG) == COMPRESSED_FLAG) {
+                // only honored once both sides agreed to compress
+                if ((state != State.ESTABLISHED) || (compressionThreshold <= 0))
+                    throw new NetworkException("received compressed message without negotiating compression");
+                messageData = inflate(messageData, messageOffset, messageLength);
+                messageOffset = 0;
+                messageLength = messageData.length;
+            }
+            if ((flags & BINARY_FLAG) == BINARY_FLAG) {
+                Message message = Message.decodeBinary(messageData, messageOffset, messageLength);
+                onDecoded(startTime, decryptedTime);
+                if (message != null)
+                    onMessage(message);
+            } else {
+                String encoded = new String(messageData, messageOffset, messageLength, "UTF-8");
+                try {
+                    Message message = Message.decode(encoded);
+                    onDecoded(startTime, decryptedTime);
+                    if (message != null)
+                        onMessage(message);
+                } catch (StringIndexOutOfBoundsException e) {
+                    Utils.severe("Got a StringIndexOutOfBounds, dumping debug state!!!");
+                    Utils.severe("flags=%s", flags);
+                    Utils.severe("recLen=%s", length);
+                    Utils.severe("messageLength=%s", messageLength);
+                    Utils.severe("encoded.length=%s", encoded.length());
+                    Utils.severe("encoded=%s", encoded);
+                    Utils.severe("first 16 bytes of frame: %s", Utils.byteArrayToString(buf, offset, Math.min(16, length)));
+                    Utils.severe("last 16 bytes of frame: %s", Utils.byteArrayToString(buf, offset + Math.max(0, length - 16), Math.min(16, length)));
+                    Utils.severe("first 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, messageOffset, Math.min(16, messageLength)));
+                    throw e;
+                }
+            }
+            return true;
+        } catch (Throwable t) {
+            Utils.severe(t, "exception while processing message from %s: %s", name, t.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    private void onDecoded(long startTime, long decryptedTime) {
+        PeerStats stats = getStats();
+        if (stats != null)
+            stats.onFrameDecoded(decryptedTime - startTime, System.nanoTime() - decryptedTime);
+    }
+
+    // Compressed frames carry the inflated length in front of the deflate data.
+    private byte[] deflate(byte[] data) {
+        synchronized (this) {
+            if (deflater == null)
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            else
+                deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length + 4];
+            out[0] = (byte)(0x00ff & (data.length >> 24));
+            out[1] = (byte)(0x00ff & (data.length >> 16));
+            out[2] = (byte)(0x00ff & (data.length >> 8));
+            out[3] = (byte)(0x00ff & data.length);
+            int len = 4;
+            while ((! deflater.finished()) && (len < out.length))
+                len += deflater.deflate(out, len, out.length - len);
+            if (! deflater.finished())
+                // didn't fit in the original size, so don't bother
+                return data;
+            byte[] result = new byte[len];
+            System.arraycopy(out, 0, result, 0, len);
+            return result;
+        }
+    }
+
+    // The output buffer grows as data actually inflates, so the length the
+    // peer claims only sets the ceiling.
+    // only called from the decoder, one frame at a time
+    private byte[] inflate(byte[] data, int offset, int length) throws NetworkException, DataFormatException {
+        if (length < 4)
+            throw new NetworkException("compressed frame is too short");
+        int size =
+                (Utils.unsignedByteToInt(data[offset]) << 24) +
+                (Utils.unsignedByteToInt(data[offset + 1]) << 16) +
+                (Utils.unsignedByteToInt(data[offset + 2]) << 8) +
+                Utils.unsignedByteToInt(data[offset + 3]);
+        if ((size < 0) || (size > MAX_INFLATED_SIZE))
+            throw new NetworkException("compressed frame is too large (%d bytes)", size);
+        if (inflater == null)
+            inflater = new Inflater();
+        else
+            inflater.reset();
+        inflater.setInput(data, offset + 4, length - 4);
+        byte[] out = new byte[Math.min(size, Math.max(MIN_INFLATE_BUFFER, (length - 4) * 4))];
+        int len = 0;
+        while ((len < size) && (! inflater.finished())) {
+            if (len == out.length)
+                out = Arrays.copyOf(out, (int)Math.min((long)size, (long)out.length * 2));
+            int n = inflater.inflate(out, len, out.length - len);
+            if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary()))
                 break;
+            len += n;
         }
+        if (len != size)
+            throw new NetworkException("compressed frame is corrupt");
+        return out;
+    }
 
+    // Returns the number of frames waiting to be written.
+    public int getWriteQueueDepth() {
+        synchronized (writeBuffers) {
+            int depth = writeBuffers.size();
+            for (ArrayDeque<Frame> lane : lanes)
+                depth += lane.size();
+            return depth;
+        }
     }
 
     public boolean onHasWriteData() {
         synchronized (writeBuffers) {
-            return ! writeBuffers.isEmpty();
+            // a frame being encrypted isn't in either queue
+            if (filling || (! writeBuffers.isEmpty())) return true;
+            for (ArrayDeque<Frame> lane : lanes)
+                if (! lane.isEmpty()) return true;
+            return false;
         }
 
     }
 
-    public byte[] onGetWriteData() {
+    // Returns true if there are encrypted frames ready to be written.
+    public boolean onHasWriteBuffers() {
+        synchronized (writeBuffers) {
+            return ! writeBuffers.isEmpty();
+        }
+    }
+
+    // Returns the encrypted frames at the head of the queue, up to batchSize
+    // bytes but always at least one frame, for a single gathering write, or
+    // null if none are ready yet. Frames stay queued until onWroteData sees
+    // them fully written.
+    public ByteBuffer[] onGetWriteData(int batchSize) {
+        ByteBuffer[] batch = null;
+        boolean fill;
         synchronized (writeBuffers) {
-            if (writeBuffers.isEmpty()) return null;
-            return writeBuffers.remove(0);
+            fillSize = batchSize * 2;
+            if (! writeBuffers.isEmpty()) {
+                List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+                int size = 0;
+                for (ByteBuffer buffer : writeBuffers) {
+                    if ((! buffers.isEmpty()) && ((size + buffer.remaining()) > batchSize)) break;
+                    buffers.add(buffer);
+                    size += buffer.remaining();
+                }
+                batch = buffers.toArray(new ByteBuffer[buffers.size()]);
+            }
+            fill = startFill();
         }
+        if (fill) Network.encode(fillTask);
+        return batch;
     }
 
-    public void onPutWriteData(byte[] data) {
+    // Drops the frames that were completely written. A partially written
+    // frame stays at the head of the queue with its position marking where
+    // the next write picks up.
+    public void onWroteData(ByteBuffer[] buffers) {
+        boolean drained = false;
+        boolean fill;
         synchronized (writeBuffers) {
-            writeBuffers.add(0, data);
+            for (ByteBuffer buffer : buffers) {
+                // an abort may have dropped the queue during the write
+                if (buffer.hasRemaining() || (writeBuffers.peek() != buffer)) break;
+                writeBuffers.poll();
+                queuedBytes -= buffer.limit();
+                bufferedBytes -= buffer.limit();
+            }
+            if (congested && (queuedBytes <= lowWaterMark)) {
+                congested = false;
+                drained = true;
+            }
+            fill = startFill();
         }
+        if (fill) Network.encode(fillTask);
+        if (drained)
+            Utils.info("outbound queue to %s has drained", getName());
     }
 
     public void onWriteCompleted() {
@@ -269,9 +594,17 @@ public final class Connection {
 
     public void onKilled() {
         channel = null;
+        killed = true;
     }
 
     public void onClosed() {
+        if (! incoming)
+            Network.endConnect(this);
+        if ((server != null) && (server.getConnection() != this)) {
+            // replaced by a newer connection, which the server still wants
+            Utils.info("closed connection with %s", getName());
+            return;
+        }
         if (server != null) {
     Utils.debug("state is %s", state);
             if (state == State.HANDSHAKE)
@@ -285,83 +618,289 @@ public final class Connection {
 
     // outbound connection
     public void open() {
-        Network.open(this);
+        Network.startConnect(this);
     }
 
     public boolean isOpen() {
-        return (state == State.ESTABLISHED) &&
-               (channel != null) &&
-               (channel.socket() != null) &&
-               channel.socket().isConnected() &&
-               (! channel.socket().isClosed());
+        return (state == State.ESTABLISHED) && transport.isConnected(this);
     }
 
     public void close() {
         if (state == State.CLOSED) return;
         state = State.CLOSED;
-        Network.close(this);
+        // the transport still cleans up a connection it never saw
+        Network.cancelConnect(this);
+        transport.close(this);
+        // a peer that isn't reading would keep the connection forever
+        TimingWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (killed) return;
+                Utils.warning("connection with %s didn't drain in time, aborting it", getName());
+                abort();
+            }
+        }, CLOSE_TIMEOUT);
+    }
+
+    // Closes the connection right away, dropping anything still queued. For
+    // peers that have stopped reading, whose queue would never drain.
+    // can be called from any thread
+    public void abort() {
+        state = State.CLOSED;
+        synchronized (writeBuffers) {
+            aborted = true;
+            writeBuffers.clear();
+            bufferedBytes = 0;
+            clearLanes();
+        }
+        Network.cancelConnect(this);
+        transport.abort(this);
     }
 
     public void sendMessage(Message message, boolean encrypt) {
+        sendMessage(message, encrypt, PRIORITY_CONTROL);
+    }
+
+    public void sendMessage(Message message, boolean encrypt, int priority) {
+        sendMessage(message, encrypt, priority, null);
+    }
+
+    // A message with a collapse key replaces any unsent state message with
+    // the same key while the connection is congested.
+    public void sendMessage(Message message, boolean encrypt, int priority, String collapseKey) {
         if (state == State.CLOSED) return;
+        if (! queueMessage(message, encrypt, priority, collapseKey)) return;
+        flush();
+    }
+
+    // Queues a batch of messages in order and wakes the network thread once.
+    // The collapse keys, if any, line up with the messages.
+    public void sendMessages(List<Message> messages, List<String> collapseKeys, boolean encrypt, int priority) {
+        if (state == State.CLOSED) return;
+        for (int i = 0; i < messages.size(); i++)
+            if (! queueMessage(messages.get(i), encrypt, priority, (collapseKeys == null) ? null : collapseKeys.get(i))) return;
+        flush();
+    }
+
+    // Returns false if the connection was closed because the queue is full.
+    private boolean queueMessage(Message message, boolean encrypt, int priority, String collapseKey) {
+        if (congested && (priority == PRIORITY_BULK)) {
+            PeerStats stats = getStats();
+            if (stats != null) stats.onMessageDropped();
+            return true;
+        }
         try {
-            String encoded = message.encode();
-            byte[] messageData = encoded.getBytes("UTF-8");
-            byte[] clearData = messageData;
-            if (encrypt) {
-                Cipher cipher = new Cipher(CIPHER_PAD_SIZE);
-                cipher.initEncrypt(server.getKey().getBytes("UTF-8"));
-                messageData = cipher.doFinal(messageData);
-            }
-            byte[] data = new byte[messageData.length + 4];
-            System.arraycopy(messageData, 0, data, 4, messageData.length);
-            data[0] = encrypt ? ENCRYPTED_FLAG : 0;
-            data[1] = (byte)(0x00ff & (messageData.length >> 16));
-            data[2] = (byte)(0x00ff & (messageData.length >> 8));
-            data[3] = (byte)(0x00ff & messageData.length);
-            
-            int recLen =
-                    (0x00ff0000 & ((int)data[1] << 16)) +
-                    (0x0000ff00 & ((int)data[2] << 8)) +
-                    (0x000000ff & (int)data[3]);
-            if (recLen != messageData.length) {
-                Utils.severe("Encoded message link mismatched, dumping debug state!!!");
-                Utils.severe("encoded=%s", encoded);
-                Utils.severe("encoded.length=%s", encoded.length());
-                Utils.severe("encrypt=%s", encrypt);
-                Utils.severe("clearData.length=%s", clearData.length);
-                Utils.severe("messageData.length=%s", messageData.length);
-                Utils.severe("data.length=%s", data.length);
-                Utils.severe("recLen=%s", recLen);
-                Utils.severe("recLen bytes: %s %s %s",
-                    (0x00ff0000 & ((int)data[1] << 16)),
-                    (0x0000ff00 & ((int)data[2] << 8)),
-                    (0x000000ff & (int)data[3])
-                );
-                Utils.severe("first 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, 0, 16));
-                Utils.severe("last 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, clearData.length - 16, 16));
-                Utils.severe("first 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, 0, 16));
-                Utils.severe("last 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, messageData.length - 16, 16));
-                Utils.severe("first 16 bytes of data: %s", Utils.byteArrayToString(data, 0, 16));
-                Utils.severe("last 16 bytes of data: %s", Utils.byteArrayToString(data, data.length - 16, 16));
-                (new Exception("Invalid message encoding!!!")).printStackTrace();
+            long startTime = System.nanoTime();
+            boolean binary = protocolVersion >= BINARY_PROTOCOL_VERSION;
+            byte[] messageData;
+            if (binary)
+                messageData = message.encodeBinary();
+            else
+                messageData = message.encode().getBytes("UTF-8");
+            boolean compressed = false;
+            if ((compressionThreshold > 0) &&
+                (messageData.length >= compressionThreshold) &&
+                (messageData.length <= MAX_INFLATED_SIZE)) {
+                byte[] compressedData = deflate(messageData);
+                if (compressedData.length < messageData.length) {
+                    messageData = compressedData;
+                    compressed = true;
+                }
             }
+            byte flags = binary ? BINARY_FLAG : 0;
+            if (compressed) flags |= COMPRESSED_FLAG;
+            Frame frame = new Frame(flags, messageData, encrypt, System.nanoTime() - startTime, collapseKey);
+            boolean collapsed = false;
+            boolean overHigh = false;
+            boolean overLimit = false;
             synchronized (writeBuffers) {
-                writeBuffers.add(data);
+                if (congested && (collapseKey != null))
+                    collapsed = removeFrame(lanes[priority], collapseKey);
+                lanes[priority].add(frame);
+                queuedBytes += frame.data.length;
+                if ((queueLimit > 0) && (queuedBytes > queueLimit)) {
+                    overLimit = true;
+                    clearLanes();
+                } else if ((! congested) && (highWaterMark > 0) && (queuedBytes > highWaterMark))
+                    congested = overHigh = true;
             }
             lastMessageSentTime = System.currentTimeMillis();
-        } catch (UnsupportedEncodingException e) {
+            PeerStats stats = getStats();
+            if (stats != null) {
+                if (collapsed) stats.onMessageCollapsed();
+                if (overHigh) stats.onCongested();
+            }
+            if (overHigh)
+                Utils.warning("outbound queue to %s is over %d bytes, dropping chat until it drains", getName(), highWaterMark);
+            if (overLimit) {
+                Utils.warning("outbound queue to %s is over %d bytes, closing connection", getName(), queueLimit);
+                abort();
+                return false;
+            }
+        } catch (UnsupportedEncodingException e) {}
+        return true;
+    }
+
+    // Removes the first frame with the given collapse key from the lane.
+    // must be called while synchronized on writeBuffers
+    private boolean removeFrame(ArrayDeque<Frame> lane, String collapseKey) {
+        for (Iterator<Frame> i = lane.iterator(); i.hasNext(); ) {
+            Frame frame = i.next();
+            if (collapseKey.equals(frame.collapseKey)) {
+                i.remove();
+                queuedBytes -= frame.data.length;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Drops everything that hasn't been encrypted yet.
+    // must be called while synchronized on writeBuffers
+    private void clearLanes() {
+        for (ArrayDeque<Frame> lane : lanes)
+            lane.clear();
+        queuedBytes = 0;
+        for (ByteBuffer buffer : writeBuffers)
+            queuedBytes += buffer.limit();
+        congested = false;
+    }
+
+    private void setQueueLimits() {
+        highWaterMark = Network.getHighWaterMark();
+        lowWaterMark = Math.min(Network.getLowWaterMark(), highWaterMark);
+        queueLimit = Math.max(Network.getQueueLimit(), highWaterMark);
+    }
+
+    // Frames are encrypted as they leave their lane, by one thread at a time,
+    // so session frames hit the wire in sequence order. Encryption never runs
+    // on the network threads: the thread that queues a frame tops up the
+    // write queue itself, and a write that drains it hands the refill to a
+    // worker. The write queue is only kept two batches ahead of the socket,
+    // so a control frame never waits behind much lower priority data.
+
+    // Tops up the write queue on this thread and wakes the transport.
+    private void flush() {
+        boolean fill;
+        synchronized (writeBuffers) {
+            fill = startFill();
+        }
+        if (fill) fillWriteBuffers();
+        transport.wantWrite(this);
+    }
+
+    // Returns true if the caller should fill the write queue.
+    // must be called while synchronized on writeBuffers
+    private boolean startFill() {
+        if (filling || aborted || (bufferedBytes >= fillSize)) return false;
+        for (ArrayDeque<Frame> lane : lanes)
+            if (! lane.isEmpty()) {
+                filling = true;
+                return true;
+            }
+        return false;
+    }
+
+    private final Runnable fillTask = new Runnable() {
+        @Override
+        public void run() {
+            if (fillWriteBuffers())
+                transport.wantWrite(Connection.this);
+        }
+    };
+
+    // Returns true if anything was added to the write queue.
+    private boolean fillWriteBuffers() {
+        boolean filled = false;
+        while (true) {
+            Frame frame;
+            synchronized (writeBuffers) {
+                frame = (aborted || (bufferedBytes >= fillSize)) ? null : nextFrame();
+                if (frame == null) {
+                    filling = false;
+                    return filled;
+                }
+            }
+            byte[] data;
+            try {
+                data = encryptFrame(frame);
+            } catch (GeneralSecurityException e) {
+                Utils.severe(e, "unable to encrypt message to %s: %s", getName(), e.getMessage());
+                synchronized (writeBuffers) {
+                    clearLanes();
+                    filling = false;
+                }
+                close();
+                return filled;
+            } catch (UnsupportedEncodingException e) {
+                synchronized (writeBuffers) {
+                    queuedBytes -= frame.data.length;
+                }
+                continue;
+            }
+            synchronized (writeBuffers) {
+                if (aborted) continue;
+                writeBuffers.add(ByteBuffer.wrap(data));
+                bufferedBytes += data.length;
+                queuedBytes += data.length - frame.data.length;
+            }
+            filled = true;
         }
-        Network.wantWrite(this);
+    }
+
+    // must be called while synchronized on writeBuffers
+    private Frame nextFrame() {
+        if (! lanes[PRIORITY_CONTROL].isEmpty())
+            return lanes[PRIORITY_CONTROL].poll();
+        boolean state = ! lanes[PRIORITY_STATE].isEmpty();
+        boolean bulk = ! lanes[PRIORITY_BULK].isEmpty();
+        if (state && ((! bulk) || (stateRun < STATE_WEIGHT))) {
+            stateRun++;
+            return lanes[PRIORITY_STATE].poll();
+        }
+        stateRun = 0;
+        return lanes[PRIORITY_BULK].poll();
+    }
+
+    // only called by the thread filling the write queue
+    private byte[] encryptFrame(Frame frame) throws GeneralSecurityException, UnsupportedEncodingException {
+        long startTime = System.nanoTime();
+        byte flags = frame.flags;
+        byte[] messageData = frame.data;
+        if (frame.encrypt) {
+            if (session != null) {
+                flags |= SESSION_FLAG;
+                messageData = session.encrypt(flags, messageData);
+            } else {
+                flags |= ENCRYPTED_FLAG;
+                if (legacyEncrypt == null)
+                    legacyEncrypt = new Cipher(CIPHER_PAD_SIZE);
+                legacyEncrypt.initEncrypt(server.getKey().getBytes("UTF-8"));
+                messageData = legacyEncrypt.doFinal(messageData);
+            }
+        }
+        long encryptTime = System.nanoTime() - startTime;
+        if (messageData.length > 0x00ffffff) {
+            Utils.severe("frame to %s is too large (%d bytes)", getName(), messageData.length);
+            (new Exception("Invalid message encoding!!!")).printStackTrace();
+        }
+        byte[] data = new byte[messageData.length + 4];
+        System.arraycopy(messageData, 0, data, 4, messageData.length);
+        data[0] = flags;
+        data[1] = (byte)(0x00ff & (messageData.length >> 16));
+        data[2] = (byte)(0x00ff & (messageData.length >> 8));
+        data[3] = (byte)(0x00ff & messageData.length);
+        PeerStats stats = getStats();
+        if (stats != null)
+            stats.onFrameQueued(data.length, frame.encodeTime, encryptTime);
+        return data;
     }
 
     public Result sendRequest(Message message, boolean encrypt) {
         int requestId = nextRequestId++;
         message.put("requestId", requestId);
         Result result = new Result();
-        synchronized (requests) {
-            requests.put(requestId, result);
-        }
+        requests.put(requestId, result);
         sendMessage(message, encrypt);
         return result;
     }
@@ -387,10 +926,13 @@ public final class Connection {
                 close();
                 return;
             }
+            // the peer speaks every version from protocolVersion to maxProtocolVersion
             int protocol = message.getInt("protocolVersion", 0);
-            if (protocol != PROTOCOL_VERSION) {
+            int maxProtocol = message.getInt("maxProtocolVersion", protocol);
+            int negotiated = Math.min(maxProtocol, PROTOCOL_VERSION);
+            if (negotiated < Math.max(protocol, MIN_PROTOCOL_VERSION)) {
                 if ((server == null) || (! server.connectionMessagesSuppressed()))
-                    Utils.warning("protocol version mismatch on connection with '%s', wanted '%d', got '%d'", getName(), PROTOCOL_VERSION, protocol);
+                    Utils.warning("protocol version mismatch on connection with '%s', wanted '%d-%d', got '%d-%d'", getName(), MIN_PROTOCOL_VERSION, PROTOCOL_VERSION, protocol, maxProtocol);
                 close();
                 return;
             }
@@ -403,7 +945,7 @@ public final class Connection {
             }
 
             if (incoming) {
-                // compare hashed keys with all the available servers to determine which server is connecting
+                // look up the hashed key to determine which server is connecting
                 String key = message.getString("key");
                 if (key == null) {
                     if ((server == null) || (! server.connectionMessagesSuppressed()))
@@ -411,44 +953,64 @@ public final class Connection {
                     close();
                     return;
                 }
-                for (Server serv : Servers.getAll()) {
-                    try {
-                        MessageDigest dig = MessageDigest.getInstance("SHA1");
-                        Formatter f = new Formatter();
-                        byte[] out = dig.digest((serv.getKey() + ":" + Network.getCachedKey()).getBytes("UTF-8"));
-                        for (Byte b : out) f.format("%02x", b);
-                        if (f.toString().equals(key)) {
-                            Utils.info("server key match detected for '%s' on connection with %s", serv.getName(), getName());
-                            if (serv.isEnabled()) {
-                                if (serv.isConnectionConnected()) {
-                                    Utils.warning("server '%s' is already connected", serv.getName());
-                                    close();
-                                    return;
-                                } else if (serv.isConnecting())
-                                    serv.disconnect(false);
-                                server = serv;
-                                server.setConnection(this);
-                                state = State.ESTABLISHED;
-
-                                // send handshake
-                                message = new Message();
-                                message.put("protocolVersion", PROTOCOL_VERSION);
-                                message.put("pluginVersion", Global.pluginVersion);
-                                sendMessage(message, false);
-
-                                server.onConnected(version);
-                                return;
-                            } else {
-                                Utils.info("server '%s' is disabled", serv.getName());
-                                Message errMsg = new Message();
-                                errMsg.put("error", "server is disabled");
-                                sendMessage(errMsg, false);
+                Peer serv = transport.findPeer(key);
+                if (serv != null) {
+                    Utils.info("server key match detected for '%s' on connection with %s", serv.getName(), getName());
+                    if (serv.isEnabled()) {
+                        if (serv.isConnectionConnected()) {
+                            Utils.warning("server '%s' is already connected", serv.getName());
+                            close();
+                            return;
+                        } else if (serv.isConnecting())
+                            serv.disconnect(false);
+                        server = serv;
+                        server.setConnection(this);
+                        setQueueLimits();
+                        state = State.ESTABLISHED;
+
+                        // use a session cipher if both sides want one
+                        String clientNonce = message.getString("nonce");
+                        if ((negotiated >= SESSION_PROTOCOL_VERSION) &&
+                            (clientNonce != null) &&
+                            SessionCipher.NAME.equals(message.getString("cipher")) &&
+                            Network.getCipher().equals(SessionCipher.NAME))
+                            nonce = SessionCipher.createNonce();
+                        if ((negotiated >= COMPRESSION_PROTOCOL_VERSION) &&
+                            COMPRESSION.equals(message.getString("compression")))
+                            compressionThreshold = Network.getCompressionThreshold();
+
+                        // send handshake
+                        message = new Message();
+                        message.put("protocolVersion", negotiated);
+                        message.put("pluginVersion", Global.pluginVersion);
+                        if (nonce != null) {
+                            message.put("cipher", SessionCipher.NAME);
+                            message.put("nonce", nonce);
+                        }
+                        if (compressionThreshold > 0)
+                            message.put("compression", COMPRESSION);
+                        sendMessage(message, false);
+                        protocolVersion = negotiated;
+                        if (nonce != null) {
+                            try {
+                                session = new SessionCipher(serv.getKey() + ":" + transport.getLocalKey(), clientNonce, nonce, false);
+                            } catch (GeneralSecurityException e) {
+                                Utils.severe(e, "unable to create session cipher for connection with %s", getName());
                                 close();
                                 return;
                             }
                         }
-                    } catch (NoSuchAlgorithmException e) {
-                    } catch (UnsupportedEncodingException e) {}
+
+                        server.onConnected(version);
+                        return;
+                    } else {
+                        Utils.info("server '%s' is disabled", serv.getName());
+                        Message errMsg = new Message();
+                        errMsg.put("error", "server is disabled");
+                        sendMessage(errMsg, false);
+                        close();
+                        return;
+                    }
                 }
                 if ((server == null) || (! server.connectionMessagesSuppressed()))
                     Utils.warning("unknown key detected on connection with %s", this);
@@ -457,7 +1019,29 @@ public final class Connection {
                 sendMessage(errMsg, false);
                 close();
             } else {
+                String cipher = message.getString("cipher");
+                if (cipher != null) {
+                    String serverNonce = message.getString("nonce");
+                    if ((! cipher.equals(SessionCipher.NAME)) || (nonce == null) || (serverNonce == null)) {
+                        if (! server.connectionMessagesSuppressed())
+                            Utils.warning("unexpected cipher '%s' on connection with '%s'", cipher, getName());
+                        close();
+                        return;
+                    }
+                    try {
+                        session = new SessionCipher(transport.getLocalKey() + ":" + server.getKey(), nonce, serverNonce, true);
+                    } catch (GeneralSecurityException e) {
+                        Utils.severe(e, "unable to create session cipher for connection with %s", getName());
+                        close();
+                        return;
+                    }
+                }
+                if (COMPRESSION.equals(message.getString("compression")))
+                    compressionThreshold = Network.getCompressionThreshold();
+                protocolVersion = negotiated;
+                setQueueLimits();
                 state = State.ESTABLISHED;
+                Network.endConnect(this);
                 server.onConnected(version);
             }
 
@@ -471,10 +1055,7 @@ public final class Connection {
             }
             if (message.containsKey("responseId")) {
                 int responseId = message.getInt("responseId");
-                Result result;
-                synchronized (requests) {
-                    result = requests.remove(responseId);
-                }
+                Result result = requests.remove(responseId);
                 if (result == null)
                     Utils.warning("received response to unknown request %d from %s", responseId, getName());
                 else
@@ -484,6 +1065,30 @@ public final class Connection {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Frame>[] createLanes() {
+        ArrayDeque<Frame>[] lanes = new ArrayDeque[LANES];
+        for (int i = 0; i < LANES; i++)
+            lanes[i] = new ArrayDeque<Frame>();
+        return lanes;
+    }
+
+    // an encoded message waiting in a lane
+    private static final class Frame {
+        final byte flags;
+        final byte[] data;
+        final boolean encrypt;
+        final long encodeTime;
+        final String collapseKey;
+        Frame(byte flags, byte[] data, boolean encrypt, long encodeTime, String collapseKey) {
+            this.flags = flags;
+            this.data = data;
+            this.encrypt = encrypt;
+            this.encodeTime = encodeTime;
+            this.collapseKey = collapseKey;
+        }
+    }
+
     private enum State {
         NONE,
         HANDSHAKE,
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bennedum.transporter.Servers;
+import org.bennedum.transporter.Utils;
+
+/**
+ * In-memory transport between servers in the same JVM.
+ * <p>
+ * Each transport is one simulated server, listening on a made up address.
+ * Frames are copied straight from a connection's write queue into the read
+ * buffer of the connection on the other end, so everything above the socket
+ * (framing, encryption, compression, lanes, backpressure) runs exactly as it
+ * does over TCP. Each transport has a single I/O thread that plays the part
+ * of a network selector for the connections it owns.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class LoopbackTransport implements Transport, Runnable {
+
+    private static final int BATCH_SIZE = 65536;
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private static final Map<String,LoopbackTransport> listeners = new HashMap<String,LoopbackTransport>();
+
+    private final String address;
+    private final String localKey;
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private Thread thread = null;
+    private volatile boolean stop = false;
+
+    // connections owned by this transport, and the other end of each
+    private final Map<Connection,Connection> links = new HashMap<Connection,Connection>();
+
+    // work for the I/O thread, all guarded by this
+    private final Set<Connection> opening = new LinkedHashSet<Connection>();
+    private final Set<Connection> writing = new LinkedHashSet<Connection>();
+    private final Set<Connection> closing = new LinkedHashSet<Connection>();
+    private final Set<Connection> hungUp = new LinkedHashSet<Connection>();
+
+    public LoopbackTransport(String address, String localKey) {
+        this.address = address;
+        this.localKey = localKey;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // Peers are the servers this one accepts connections from.
+    public void addPeer(Peer peer) {
+        synchronized (peers) {
+            peers.add(peer);
+        }
+    }
+
+    public void start() {
+        synchronized (listeners) {
+            if (listeners.containsKey(address))
+                throw new IllegalStateException("address " + address + " is already in use");
+            listeners.put(address, this);
+        }
+        stop = false;
+        thread = new Thread(this, "Transporter loopback " + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Connections are closed without waiting for their queues to drain.
+    public void stop() {
+        synchronized (listeners) {
+            listeners.remove(address);
+        }
+        synchronized (this) {
+            stop = true;
+            notifyAll();
+        }
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {}
+        }
+    }
+
+    public int getConnectionCount() {
+        synchronized (links) {
+            return links.size();
+        }
+    }
+
+    @Override
+    public synchronized void open(Connection conn) {
+        opening.add(conn);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close(Connection conn) {
+        closing.add(conn);
+        notifyAll();
+    }
+
+    // The connection has already dropped its queue, so a close doesn't wait.
+    @Override
+    public void abort(Connection conn) {
+        close(conn);
+    }
+
+    @Override
+    public synchronized void wantWrite(Connection conn) {
+        writing.add(conn);
+        notifyAll();
+    }
+
+    // the other end of a connection went away
+    private synchronized void hangUp(Connection conn) {
+        hungUp.add(conn);
+        notifyAll();
+    }
+
+    @Override
+    public boolean isConnected(Connection conn) {
+        synchronized (links) {
+            return links.containsKey(conn);
+        }
+    }
+
+    @Override
+    public String getLocalKey() {
+        return localKey;
+    }
+
+    @Override
+    public Peer findPeer(String keyDigest) {
+        synchronized (peers) {
+            for (Peer peer : peers)
+                if (keyDigest.equals(Servers.makeKeyDigest(peer.getKey(), localKey)))
+                    return peer;
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<Connection> toOpen, toWrite, toClose, toHangUp;
+            synchronized (this) {
+                while ((! stop) && opening.isEmpty() && writing.isEmpty() && closing.isEmpty() && hungUp.isEmpty())
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {}
+                if (stop) break;
+                toOpen = new ArrayList<Connection>(opening);
+                toWrite = new ArrayList<Connection>(writing);
+                toClose = new ArrayList<Connection>(closing);
+                toHangUp = new ArrayList<Connection>(hungUp);
+                opening.clear();
+                writing.clear();
+                hungUp.clear();
+            }
+            for (Connection conn : toOpen)
+                onOpen(conn);
+            for (Connection conn : toWrite)
+                onWrite(conn);
+            for (Connection conn : toClose) {
+                // let the connection finish writing first
+                if (conn.onHasWriteData() && isConnected(conn)) {
+                    wantWrite(conn);
+                    continue;
+                }
+                synchronized (this) {
+                    closing.remove(conn);
+                }
+                kill(conn);
+            }
+            for (Connection conn : toHangUp) {
+                synchronized (links) {
+                    if (links.remove(conn) == null) continue;
+                }
+                conn.onKilled();
+                conn.onClosed();
+            }
+        }
+
+        List<Connection> conns;
+        synchronized (links) {
+            conns = new ArrayList<Connection>(links.keySet());
+        }
+        for (Connection conn : conns)
+            kill(conn);
+    }
+
+    private void onOpen(Connection conn) {
+        LoopbackTransport target;
+        synchronized (listeners) {
+            target = listeners.get(conn.getConnectAddress());
+        }
+        if (target == null) {
+            conn.onException(new ConnectException("connection refused by " + conn.getConnectAddress()));
+            return;
+        }
+        Connection other = new Connection(target, address);
+        synchronized (links) {
+            links.put(conn, other);
+        }
+        synchronized (target.links) {
+            target.links.put(other, conn);
+        }
+        other.onAccepted();
+        conn.onOpened();
+    }
+
+    private void onWrite(Connection conn) {
+        Connection other;
+        synchronized (links) {
+            other = links.get(conn);
+        }
+        if (other == null) return;
+        ByteBuffer[] buffers;
+        while ((buffers = conn.onGetWriteData(BATCH_SIZE)) != null) {
+            for (ByteBuffer buffer : buffers)
+                deliver(buffer, other);
+            conn.onWroteData(buffers);
+        }
+        conn.onWriteCompleted();
+    }
+
+    // Only the transport that owns a connection ever delivers to the other
+    // end, so the other end's reads all happen on one thread.
+    private void deliver(ByteBuffer buffer, Connection to) {
+        while (buffer.hasRemaining()) {
+            ByteBuffer readBuffer = to.getReadBuffer(READ_BUFFER_SIZE);
+            int count = Math.min(readBuffer.remaining(), buffer.remaining());
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(chunk.position() + count);
+            readBuffer.put(chunk);
+            buffer.position(buffer.position() + count);
+            to.onReadData();
+        }
+    }
+
+    private void kill(Connection conn) {
+        Utils.debug("kill %s", conn);
+        Connection other;
+        synchronized (links) {
+            other = links.remove(conn);
+        }
+        synchronized (this) {
+            opening.remove(conn);
+        }
+        conn.onKilled();
+        conn.onClosed();
+        if (other != null)
+            ((LoopbackTransport)other.getTransport()).hangUp(other);
+    }
+
+}
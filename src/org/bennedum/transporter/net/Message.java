@@ -18,7 +18,9 @@ package org.bennedum.transporter.net;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -29,8 +31,38 @@ import java.util.List;
  */
 public final class Message extends HashMap<String,Object> {
 
+    // binary type tags
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_FALSE = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_MESSAGE = 6;
+    private static final byte TAG_LIST = 7;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static Message decode(String encoded) {
-        return (Message)decodeObject(new StringBuilder(encoded));
+        TextReader r = new TextReader(encoded);
+        Message m = (Message)decodeObject(r);
+        if (r.pos != encoded.length())
+            throw new IllegalArgumentException("trailing data after message");
+        return m;
+    }
+
+    public static Message decodeBinary(byte[] data) {
+        return decodeBinary(data, 0, data.length);
+    }
+
+    public static Message decodeBinary(byte[] data, int offset, int length) {
+        BinaryReader r = new BinaryReader(data, offset, length);
+        Object o = r.readObject();
+        if (r.pos != r.end)
+            throw new IllegalArgumentException("trailing data after binary message");
+        if ((o != null) && (! (o instanceof Message)))
+            throw new IllegalArgumentException("binary data is not a message");
+        return (Message)o;
     }
 
     private static String encodeObject(Object v) {
@@ -48,13 +80,15 @@ public final class Message extends HashMap<String,Object> {
         throw new IllegalArgumentException("unable to encode '" + v.getClass().getName() + "'");
     }
 
-    private static Object decodeObject(StringBuilder b) {
-        //if (b.length() == 0) return null;   // to fix StringIndexOutOfBoundsException?
-        char type = b.charAt(0);
-        b.delete(0, 2);
-        int pos = b.indexOf(":");
-        int len = Integer.parseInt(b.substring(0, pos));
-        b.delete(0, pos + 1);
+    private static Object decodeObject(TextReader b) {
+        char type = b.s.charAt(b.pos);
+        if (b.s.charAt(b.pos + 1) != ':')
+            throw new IllegalArgumentException("expected ':' after type '" + type + "'");
+        int pos = b.s.indexOf(':', b.pos + 2);
+        if (pos == -1)
+            throw new IllegalArgumentException("missing length for type '" + type + "'");
+        int len = Integer.parseInt(b.s.substring(b.pos + 2, pos));
+        b.pos = pos + 1;
         switch (type) {
             case 'n':
 //System.out.println("decoded null");
@@ -92,10 +126,11 @@ public final class Message extends HashMap<String,Object> {
         return "s:" + v.length() + ":" + v;
     }
 
-    private static String decodeString(StringBuilder b, int len) {
+    private static String decodeString(TextReader b, int len) {
 //System.out.print("decode string (" + len + "): ");
-        String str = b.substring(0, len);
-        b.delete(0, len);
+        String str = b.take(len);
+        // skip the decoder entirely when nothing was escaped
+        if ((str.indexOf('%') == -1) && (str.indexOf('+') == -1)) return str;
         try {
             String s = URLDecoder.decode(str, "UTF-8");
 //System.out.println(s);
@@ -115,9 +150,8 @@ public final class Message extends HashMap<String,Object> {
         return "b:" + s.length() + ":" + s;
     }
 
-    private static Boolean decodeBoolean(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Boolean decodeBoolean(TextReader b, int len) {
+        String str = b.take(len);
         Boolean bool = Boolean.parseBoolean(str);
 //System.out.println("decode boolean: " + bool);
         return bool;
@@ -132,9 +166,8 @@ public final class Message extends HashMap<String,Object> {
         return "l:" + s.length() + ":" + s;
     }
 
-    private static Long decodeLong(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Long decodeLong(TextReader b, int len) {
+        String str = b.take(len);
         Long l = Long.parseLong(str);
 //System.out.println("decode long: " + l);
         return l;
@@ -149,9 +182,8 @@ public final class Message extends HashMap<String,Object> {
         return "d:" + s.length() + ":" + s;
     }
 
-    private static Double decodeDouble(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Double decodeDouble(TextReader b, int len) {
+        String str = b.take(len);
         Double d = Double.parseDouble(str);
 //System.out.println("decode double: " + d);
         return d;
@@ -171,7 +203,7 @@ public final class Message extends HashMap<String,Object> {
         return buf.toString();
     }
 
-    private static Message decodeMessage(StringBuilder b, int len) {
+    private static Message decodeMessage(TextReader b, int len) {
 //System.out.println("decode message (" + len + ")");
         Message m = new Message();
         for (int i = 0; i < len; i++) {
@@ -200,7 +232,7 @@ public final class Message extends HashMap<String,Object> {
         return buf.toString();
     }
 
-    private static List<Object> decodeList(StringBuilder b, int len) {
+    private static List<Object> decodeList(TextReader b, int len) {
 //System.out.println("decode list (" + len + ")");
         List<Object> l = new ArrayList<Object>();
         for (int i = 0; i < len; i++) {
@@ -219,6 +251,85 @@ public final class Message extends HashMap<String,Object> {
         return "[\n" + pad(buf.toString()) + "\n]";
     }
 
+    private static void jsonObject(StringBuilder buf, Object v) {
+        if (v == null) buf.append("null");
+        else if (v instanceof String) jsonString(buf, (String)v);
+        else if ((v instanceof Boolean) || (v instanceof Number)) buf.append(v.toString());
+        else if (v instanceof Message) {
+            buf.append("{");
+            boolean first = true;
+            for (String key : ((Message)v).keySet()) {
+                if (! first) buf.append(",");
+                first = false;
+                jsonString(buf, key);
+                buf.append(":");
+                jsonObject(buf, ((Message)v).get(key));
+            }
+            buf.append("}");
+        } else if (v instanceof Collection) {
+            buf.append("[");
+            boolean first = true;
+            for (Object o : (Collection)v) {
+                if (! first) buf.append(",");
+                first = false;
+                jsonObject(buf, o);
+            }
+            buf.append("]");
+        } else
+            throw new IllegalArgumentException("unable to convert '" + v.getClass().getName() + "' to JSON");
+    }
+
+    private static void jsonString(StringBuilder buf, String v) {
+        buf.append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            switch (c) {
+                case '"': buf.append("\\\""); break;
+                case '\\': buf.append("\\\\"); break;
+                case '\n': buf.append("\\n"); break;
+                case '\r': buf.append("\\r"); break;
+                case '\t': buf.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        buf.append(String.format("\\u%04x", (int)c));
+                    else
+                        buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    private static void encodeBinaryObject(BinaryWriter w, Object v) {
+        if (v == null) w.writeByte(TAG_NULL);
+        else if (v instanceof String) {
+            w.writeByte(TAG_STRING);
+            w.writeString((String)v);
+        } else if (v instanceof Boolean)
+            w.writeByte(((Boolean)v) ? TAG_TRUE : TAG_FALSE);
+        else if ((v instanceof Byte) || (v instanceof Short) || (v instanceof Integer) || (v instanceof Long)) {
+            w.writeByte(TAG_LONG);
+            w.writeVarLong(((Number)v).longValue());
+        } else if ((v instanceof Float) || (v instanceof Double)) {
+            w.writeByte(TAG_DOUBLE);
+            w.writeDouble(((Number)v).doubleValue());
+        } else if (v instanceof Message) {
+            Message m = (Message)v;
+            w.writeByte(TAG_MESSAGE);
+            w.writeVarInt(m.size());
+            for (String key : m.keySet()) {
+                w.writeString(key);
+                encodeBinaryObject(w, m.get(key));
+            }
+        } else if (v instanceof Collection) {
+            Collection c = (Collection)v;
+            w.writeByte(TAG_LIST);
+            w.writeVarInt(c.size());
+            for (Object o : c)
+                encodeBinaryObject(w, o);
+        } else
+            throw new IllegalArgumentException("unable to encode '" + v.getClass().getName() + "'");
+    }
+
     private static String pad(String str) {
         StringBuilder buf = new StringBuilder();
         for (String line : str.split("\n"))
@@ -234,6 +345,12 @@ public final class Message extends HashMap<String,Object> {
         return encodeMessage(this);
     }
 
+    public byte[] encodeBinary() {
+        BinaryWriter w = new BinaryWriter();
+        encodeBinaryObject(w, this);
+        return w.toByteArray();
+    }
+
     public Object get(String key, Object def) {
         if (containsKey(key))
             return get(key);
@@ -357,9 +474,187 @@ public final class Message extends HashMap<String,Object> {
         return c;
     }
 
+    public String toJSON() {
+        StringBuilder buf = new StringBuilder();
+        jsonObject(buf, this);
+        return buf.toString();
+    }
+
     @Override
     public String toString() {
         return stringifyMessage(this);
     }
 
+    // Text decoding keeps a read index into the encoded string rather than
+    // consuming it, so decoding is linear in the size of the message.
+
+    private static final class TextReader {
+
+        private final String s;
+        private int pos = 0;
+
+        TextReader(String s) {
+            this.s = s;
+        }
+
+        String take(int len) {
+            if ((len < 0) || ((pos + len) > s.length()))
+                throw new StringIndexOutOfBoundsException("value length " + len + " exceeds message at " + pos);
+            String str = s.substring(pos, pos + len);
+            pos += len;
+            return str;
+        }
+
+    }
+
+    // Binary encoding: a one byte type tag followed by the value.
+    // Integral numbers are zigzag varints, doubles are 8 bytes big-endian,
+    // strings are a varint byte length followed by raw UTF-8, and messages
+    // and lists are a varint count followed by their (key and) values.
+
+    private static final class BinaryWriter {
+
+        private byte[] buf = new byte[256];
+        private int len = 0;
+
+        private void ensure(int n) {
+            if ((len + n) <= buf.length) return;
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + n));
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[len++] = (byte)b;
+        }
+
+        void writeVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7f) != 0) {
+                buf[len++] = (byte)((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte)v;
+        }
+
+        void writeVarLong(long v) {
+            v = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[len++] = (byte)((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte)v;
+        }
+
+        void writeDouble(double d) {
+            long v = Double.doubleToLongBits(d);
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                buf[len++] = (byte)(v >>> shift);
+        }
+
+        void writeString(String s) {
+            byte[] b = s.getBytes(UTF8);
+            writeVarInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+
+    }
+
+    private static final class BinaryReader {
+
+        private final byte[] buf;
+        private int pos;
+        private final int end;
+
+        BinaryReader(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            pos = offset;
+            end = offset + length;
+        }
+
+        private void need(int n) {
+            if ((n < 0) || ((end - pos) < n))
+                throw new IllegalArgumentException("truncated binary message");
+        }
+
+        int readVarInt() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                need(1);
+                byte b = buf[pos++];
+                v |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                need(1);
+                byte b = buf[pos++];
+                v |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return (v >>> 1) ^ -(v & 1);
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        double readDouble() {
+            need(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++)
+                v = (v << 8) | (buf[pos++] & 0xff);
+            return Double.longBitsToDouble(v);
+        }
+
+        String readString() {
+            int len = readVarInt();
+            need(len);
+            String s = new String(buf, pos, len, UTF8);
+            pos += len;
+            return s;
+        }
+
+        Object readObject() {
+            need(1);
+            byte tag = buf[pos++];
+            int count;
+            switch (tag) {
+                case TAG_NULL: return null;
+                case TAG_STRING: return readString();
+                case TAG_TRUE: return Boolean.TRUE;
+                case TAG_FALSE: return Boolean.FALSE;
+                case TAG_LONG: return readVarLong();
+                case TAG_DOUBLE: return readDouble();
+                case TAG_MESSAGE:
+                    count = readVarInt();
+                    Message m = new Message();
+                    for (int i = 0; i < count; i++) {
+                        String key = readString();
+                        m.put(key, readObject());
+                    }
+                    return m;
+                case TAG_LIST:
+                    count = readVarInt();
+                    // each element takes at least one byte
+                    need(count);
+                    List<Object> l = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++)
+                        l.add(readObject());
+                    return l;
+                default:
+                    throw new IllegalArgumentException("unable to decode binary tag '" + tag + "'");
+            }
+        }
+
+    }
+
 }
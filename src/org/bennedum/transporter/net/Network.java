@@ -23,21 +23,21 @@ import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.PatternSyntaxException;
 import org.bennedum.transporter.Config;
 import org.bennedum.transporter.Context;
@@ -46,8 +46,8 @@ import org.bennedum.transporter.Options;
 import org.bennedum.transporter.OptionsException;
 import org.bennedum.transporter.OptionsListener;
 import org.bennedum.transporter.PermissionsException;
-import org.bennedum.transporter.Server;
 import org.bennedum.transporter.Servers;
+import org.bennedum.transporter.TimingWheel;
 import org.bennedum.transporter.Utils;
 
 /**
@@ -56,6 +56,9 @@ import org.bennedum.transporter.Utils;
  */
 public final class Network {
 
+    // how long an outbound connection may take to connect and handshake
+    private static final int CONNECT_TIMEOUT = 30000;
+
     private static final Set<String> OPTIONS = new HashSet<String>();
     private static final Set<String> RESTART_OPTIONS = new HashSet<String>();
     private static final Options options;
@@ -67,16 +70,29 @@ public final class Network {
         OPTIONS.add("sendPrivateAddress");
         OPTIONS.add("clusterName");
         OPTIONS.add("reconnectInterval");
-        OPTIONS.add("reconnectSkew");
+        OPTIONS.add("reconnectMaxInterval");
+        OPTIONS.add("concurrentConnects");
         OPTIONS.add("listenAddress");
         OPTIONS.add("key");
         OPTIONS.add("suppressConnectionAttempts");
+        OPTIONS.add("cipher");
+        OPTIONS.add("ioThreads");
+        OPTIONS.add("compressionThreshold");
+        OPTIONS.add("highWaterMark");
+        OPTIONS.add("lowWaterMark");
+        OPTIONS.add("queueLimit");
+        OPTIONS.add("keepAliveInterval");
+        OPTIONS.add("keepAliveTimeout");
+        OPTIONS.add("tcpKeepAlive");
+        OPTIONS.add("transport");
 
         RESTART_OPTIONS.add("readBufferSize");
         RESTART_OPTIONS.add("selectInterval");
         RESTART_OPTIONS.add("clusterName");
         RESTART_OPTIONS.add("listenAddress");
         RESTART_OPTIONS.add("key");
+        RESTART_OPTIONS.add("ioThreads");
+        RESTART_OPTIONS.add("transport");
         options = new Options(Network.class, OPTIONS, "trp.network", new OptionsListener() {
             @Override
             public void onOptionSet(Context ctx, String name, String value) {
@@ -183,12 +199,19 @@ public final class Network {
     private static String key;
     private static int selectInterval;
     private static int readBufferSize;
+    private static int ioThreads;
+    private static Transport transport = SocketTransport.INSTANCE;
     private static Selector selector = null;
-    private static final Set<Pattern> banned = new HashSet<Pattern>();
-    private static final Map<SocketChannel,Connection> channels = new HashMap<SocketChannel,Connection>();
+    private static NetworkSelector[] selectors = null;
+    private static volatile ExecutorService decoder = null;
+    private static final AddressBans banned = new AddressBans();
     private static final Set<Connection> opening = new HashSet<Connection>();
     private static final Set<Connection> closing = new HashSet<Connection>();
 
+    // outbound connections waiting for a connect slot, and those holding one
+    private static final Set<Connection> waitingConnects = new LinkedHashSet<Connection>();
+    private static final Set<Connection> activeConnects = new HashSet<Connection>();
+
     // called from main thread
     public static void start(Context ctx) {
         try {
@@ -247,14 +270,15 @@ public final class Network {
         key = getKey();
         selectInterval = getSelectInterval();
         readBufferSize = getReadBufferSize();
+        ioThreads = getIoThreads();
+        transport = getTransport().equals("blocking") ? BlockingTransport.INSTANCE : SocketTransport.INSTANCE;
 
         banned.clear();
         List<String> addresses = Config.getStringList("network.bannedAddresses");
         if (addresses != null)
             for (String addressPattern : addresses) {
                 try {
-                    Pattern pattern = Pattern.compile(addressPattern);
-                    banned.add(pattern);
+                    banned.add(addressPattern);
                 } catch (PatternSyntaxException pse) {
                     ctx.warn("ignored invalid bannedAddress pattern '%s': %s", addressPattern, pse.getMessage());
                 }
@@ -263,12 +287,7 @@ public final class Network {
     }
 
     public static void onConfigSave() {
-        synchronized (banned) {
-            List<String> bannedAddresses = new ArrayList<String>(banned.size());
-            for (Pattern p : banned)
-                bannedAddresses.add(p.pattern());
-            Config.setPropertyDirect("network.bannedAddresses", bannedAddresses);
-        }
+        Config.setPropertyDirect("network.bannedAddresses", banned.getBans());
     }
 
     /* Begin options */
@@ -319,7 +338,7 @@ public final class Network {
     }
 
     public static int getReconnectInterval() {
-        return Config.getIntDirect("network.reconnectInterval", 60000);
+        return Config.getIntDirect("network.reconnectInterval", 10000);
     }
 
     public static void setReconnectInterval(int i) {
@@ -328,14 +347,24 @@ public final class Network {
         Config.setPropertyDirect("network.reconnectInterval", i);
     }
 
-    public static int getReconnectSkew() {
-        return Config.getIntDirect("network.reconnectSkew", 10000);
+    public static int getReconnectMaxInterval() {
+        return Config.getIntDirect("network.reconnectMaxInterval", 300000);
     }
 
-    public static void setReconnectSkew(int i) {
-        if (i < 0)
-            throw new IllegalArgumentException("reconnectSkew must be greater than 0");
-        Config.setPropertyDirect("network.reconnectSkew", i);
+    public static void setReconnectMaxInterval(int i) {
+        if (i < 10000)
+            throw new IllegalArgumentException("reconnectMaxInterval must be at least 10000");
+        Config.setPropertyDirect("network.reconnectMaxInterval", i);
+    }
+
+    public static int getConcurrentConnects() {
+        return Config.getIntDirect("network.concurrentConnects", 4);
+    }
+
+    public static void setConcurrentConnects(int i) {
+        if (i < 1)
+            throw new IllegalArgumentException("concurrentConnects must be at least 1");
+        Config.setPropertyDirect("network.concurrentConnects", i);
     }
 
     public static String getListenAddress() {
@@ -364,6 +393,116 @@ public final class Network {
         Config.setPropertyDirect("network.suppressConnectionAttempts", i);
     }
 
+    public static String getCipher() {
+        return Config.getStringDirect("network.cipher", SessionCipher.NAME);
+    }
+
+    public static void setCipher(String s) {
+        if (s == null) s = SessionCipher.NAME;
+        s = s.toLowerCase();
+        if ((! s.equals(SessionCipher.NAME)) && (! s.equals("legacy")))
+            throw new IllegalArgumentException("cipher must be '" + SessionCipher.NAME + "' or 'legacy'");
+        Config.setPropertyDirect("network.cipher", s);
+    }
+
+    public static int getCompressionThreshold() {
+        return Config.getIntDirect("network.compressionThreshold", 1024);
+    }
+
+    public static void setCompressionThreshold(int i) {
+        if (i < 0)
+            throw new IllegalArgumentException("compressionThreshold must be at least 0");
+        Config.setPropertyDirect("network.compressionThreshold", i);
+    }
+
+    // The outbound queue limits below are in bytes and are picked up by
+    // connections when they're established.
+
+    public static int getHighWaterMark() {
+        return Config.getIntDirect("network.highWaterMark", 1024 * 1024);
+    }
+
+    public static void setHighWaterMark(int i) {
+        if (i < 16384)
+            throw new IllegalArgumentException("highWaterMark must be at least 16384");
+        Config.setPropertyDirect("network.highWaterMark", i);
+    }
+
+    public static int getLowWaterMark() {
+        return Config.getIntDirect("network.lowWaterMark", 256 * 1024);
+    }
+
+    public static void setLowWaterMark(int i) {
+        if (i < 0)
+            throw new IllegalArgumentException("lowWaterMark must be at least 0");
+        Config.setPropertyDirect("network.lowWaterMark", i);
+    }
+
+    public static int getQueueLimit() {
+        return Config.getIntDirect("network.queueLimit", 16 * 1024 * 1024);
+    }
+
+    public static void setQueueLimit(int i) {
+        if (i < 65536)
+            throw new IllegalArgumentException("queueLimit must be at least 65536");
+        Config.setPropertyDirect("network.queueLimit", i);
+    }
+
+    public static int getKeepAliveInterval() {
+        return Config.getIntDirect("network.keepAliveInterval", 10000);
+    }
+
+    public static void setKeepAliveInterval(int i) {
+        if (i < 1000)
+            throw new IllegalArgumentException("keepAliveInterval must be at least 1000");
+        // older peers give up after 90 seconds of silence
+        if (i > 60000)
+            throw new IllegalArgumentException("keepAliveInterval must be at most 60000");
+        Config.setPropertyDirect("network.keepAliveInterval", i);
+    }
+
+    public static int getKeepAliveTimeout() {
+        return Config.getIntDirect("network.keepAliveTimeout", 30000);
+    }
+
+    public static void setKeepAliveTimeout(int i) {
+        if (i < 2000)
+            throw new IllegalArgumentException("keepAliveTimeout must be at least 2000");
+        Config.setPropertyDirect("network.keepAliveTimeout", i);
+    }
+
+    public static boolean getTcpKeepAlive() {
+        return Config.getBooleanDirect("network.tcpKeepAlive", true);
+    }
+
+    public static void setTcpKeepAlive(boolean b) {
+        Config.setPropertyDirect("network.tcpKeepAlive", b);
+    }
+
+    public static int getIoThreads() {
+        return Config.getIntDirect("network.ioThreads", 2);
+    }
+
+    public static void setIoThreads(int i) {
+        if ((i < 1) || (i > 32))
+            throw new IllegalArgumentException("ioThreads must be between 1 and 32");
+        Config.setPropertyDirect("network.ioThreads", i);
+    }
+
+    // "selector" shares the I/O threads between all connections, "blocking"
+    // gives each connection its own reader and writer threads
+    public static String getTransport() {
+        return Config.getStringDirect("network.transport", "selector");
+    }
+
+    public static void setTransport(String s) {
+        if (s == null) s = "selector";
+        s = s.toLowerCase();
+        if ((! s.equals("selector")) && (! s.equals("blocking")))
+            throw new IllegalArgumentException("transport must be 'selector' or 'blocking'");
+        Config.setPropertyDirect("network.transport", s);
+    }
+
     public static void getOptions(Context ctx, String name) throws OptionsException, PermissionsException {
         options.getOptions(ctx, name);
     }
@@ -382,55 +521,50 @@ public final class Network {
         return key;
     }
 
+    static int getCachedReadBufferSize() {
+        return readBufferSize;
+    }
+
+    static Transport getCachedTransport() {
+        return transport;
+    }
+
+    // Turns on TCP keepalives so the OS eventually notices a peer that went
+    // away without closing its socket, even when nothing is being sent.
+    static void configureSocket(SocketChannel channel) {
+        if (! getTcpKeepAlive()) return;
+        try {
+            channel.socket().setKeepAlive(true);
+        } catch (SocketException e) {
+            Utils.debug("unable to enable TCP keepalive: %s", e.getMessage());
+        }
+    }
+
     public static boolean isStopped() {
         return (state == State.STOP) || (state == State.STOPPING) || (state == State.STOPPED);
     }
 
     // called from main thread
     public static boolean addBannedAddress(String addrStr) throws NetworkException {
-        Pattern pattern;
         try {
-            pattern = Pattern.compile(addrStr);
+            return banned.add(addrStr);
         } catch (PatternSyntaxException pse) {
             throw new NetworkException("invalid pattern: %s", pse.getMessage());
         }
-        synchronized (banned) {
-            if (banned.contains(pattern)) return false;
-            banned.remove(pattern);
-            return true;
-        }
     }
 
     // called from main thread
     public static boolean removeBannedAddress(String addrStr) {
-        synchronized (banned) {
-            Iterator<Pattern> i = banned.iterator();
-            while (i.hasNext()) {
-                Pattern p = i.next();
-                if (p.pattern().equals(addrStr)) {
-                    i.remove();
-                    return true;
-                }
-            }
-        }
-        return false;
+        return banned.remove(addrStr);
     }
 
     // called from main thread
     public static void removeAllBannedAddresses() {
-        synchronized (banned) {
-            banned.clear();
-        }
+        banned.clear();
     }
 
     public static List<String> getBannedAddresses() {
-        List<String> l = new ArrayList<String>();
-        synchronized (banned) {
-            for (Pattern pattern : banned) {
-                l.add(pattern.toString());
-            }
-        }
-        return l;
+        return banned.getBans();
     }
 
     /* Networking gunk */
@@ -440,8 +574,23 @@ public final class Network {
         ServerSocketChannel serverChannel = null;
 
         try {
-            // create the selector
+            // create the selectors
             selector = Selector.open();
+            selectors = new NetworkSelector[ioThreads];
+            for (int i = 0; i < ioThreads; i++)
+                selectors[i] = new NetworkSelector(i + 1, selectInterval, readBufferSize);
+            decoder = Executors.newFixedThreadPool(ioThreads, new ThreadFactory() {
+                private int number = 1;
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Transporter network decoder " + (number++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            for (NetworkSelector sel : selectors)
+                sel.start();
+
             serverChannel = ServerSocketChannel.open();
             serverChannel.configureBlocking(false);
 
@@ -449,7 +598,10 @@ public final class Network {
             serverChannel.socket().bind(listenAddress);
             serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-            Utils.info("network manager listening on %s:%d", listenAddress.getAddress().getHostAddress(), listenAddress.getPort());
+            if (transport == BlockingTransport.INSTANCE)
+                Utils.info("network manager listening on %s:%d with blocking I/O", listenAddress.getAddress().getHostAddress(), listenAddress.getPort());
+            else
+                Utils.info("network manager listening on %s:%d with %d I/O threads", listenAddress.getAddress().getHostAddress(), listenAddress.getPort(), ioThreads);
             state = State.RUNNING;
 
             // processing
@@ -457,28 +609,36 @@ public final class Network {
                 if (state == State.STOP) {
                     state = State.STOPPING;
                     serverChannel.keyFor(selector).cancel();
-                    synchronized (closing) {
-                        closing.addAll(channels.values());
-                        for (Connection conn : closing)
-                            wantWrite(conn);
-                    }
+                    for (NetworkSelector sel : selectors)
+                        sel.closeAll();
+                    BlockingTransport.INSTANCE.closeAll();
+                    List<Connection> waiting;
                     synchronized (opening) {
-                        opening.removeAll(channels.values());
+                        waiting = new ArrayList<Connection>(opening);
+                    }
+                    synchronized (closing) {
+                        closing.addAll(waiting);
                     }
                 }
-                if ((state == State.STOPPING) && channels.isEmpty()) break;
 
                 // Close connections that are still waiting to open
                 synchronized (closing) {
                     if (! closing.isEmpty()) {
-                        for (Connection conn : new HashSet<Connection>(closing)) {
-                            if (conn.onHasWriteData()) continue;
-                            kill(conn);
-                            conn.onClosed();
+                        for (Connection conn : closing) {
+                            if (conn.getSelector() != null)
+                                conn.getSelector().close(conn);
+                            else {
+                                synchronized (opening) {
+                                    opening.remove(conn);
+                                }
+                                conn.onKilled();
+                                conn.onClosed();
+                            }
                         }
+                        closing.clear();
                     }
                 }
-                if ((state == State.STOPPING) && channels.isEmpty()) break;
+                if ((state == State.STOPPING) && (getConnectionCount() == 0)) break;
 
                 // Open connections that are waiting
                 synchronized (opening) {
@@ -487,13 +647,13 @@ public final class Network {
                             try {
                                 SocketChannel channel = SocketChannel.open();
                                 channel.configureBlocking(false);
+                                configureSocket(channel);
                                 try {
                                     InetSocketAddress address = makeInetSocketAddress(conn.getConnectAddress(), "localhost", Global.DEFAULT_PLUGIN_PORT, false);
                                     channel.connect(address);
                                 } catch (Exception e) {}
-                                channel.register(selector, SelectionKey.OP_CONNECT);
-                                channels.put(channel, conn);
                                 conn.onOpening(channel);
+                                getSelector(conn).register(conn, channel, SelectionKey.OP_CONNECT);
                             } catch (IOException e) {
                                 conn.onException(e);
                             }
@@ -502,22 +662,14 @@ public final class Network {
                     }
                 }
 
-                // Tell connected servers to do keep alives
-                for (Server server : Servers.getAll()) {
-                    server.sendKeepAlive();
-                    server.checkKeepAlive();
-                }
-
-                if (selector.select(selectInterval) > 0) {
+                // poll while waiting for the I/O threads to close everything
+                if (selector.select((state == State.STOPPING) ? 100 : selectInterval) > 0) {
                     Iterator keys = selector.selectedKeys().iterator();
                     while (keys.hasNext()) {
                         SelectionKey selKey = (SelectionKey)keys.next();
                         keys.remove();
                         if (! selKey.isValid()) continue;
                         if (selKey.isAcceptable()) onAccept(selKey);
-                        else if (selKey.isConnectable()) onConnect(selKey);
-                        else if (selKey.isReadable()) onRead(selKey);
-                        else if (selKey.isWritable()) onWrite(selKey);
                     }
                 }
 
@@ -530,6 +682,11 @@ public final class Network {
         }
         state = State.STOPPED;
 
+        if (selectors != null)
+            for (NetworkSelector sel : selectors)
+                if (sel != null) sel.stop();
+        if (decoder != null)
+            decoder.shutdown();
         if (selector != null)
             try {
                 selector.close();
@@ -541,149 +698,101 @@ public final class Network {
 
     }
 
-    // called from selection thread
-    private static void kill(Connection conn) {
-        Utils.debug("kill %s", conn);
-        SocketChannel channel = conn.getChannel();
-        if (channel != null) {
-            SelectionKey selKey = channel.keyFor(selector);
-            if (selKey != null)
-                selKey.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            channels.remove(channel);
-        }
-        synchronized (closing) {
-            closing.remove(conn);
-        }
-        synchronized (opening) {
-            opening.remove(conn);
-        }
-        conn.onKilled();
+    private static int getConnectionCount() {
+        int count = 0;
+        for (NetworkSelector sel : selectors)
+            count += sel.getConnectionCount();
+        return count + BlockingTransport.INSTANCE.getConnectionCount();
+    }
+
+    // connections are spread over the I/O threads by hash
+    private static NetworkSelector getSelector(Connection conn) {
+        return selectors[(conn.hashCode() & Integer.MAX_VALUE) % selectors.length];
     }
 
     private static void onAccept(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
         SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
         channel.configureBlocking(false);
+        configureSocket(channel);
 
         Socket socket = channel.socket();
         InetSocketAddress remoteAddress = (InetSocketAddress)socket.getRemoteSocketAddress();
 
         // rejected banned addresses
-        synchronized (banned) {
-            String addr = remoteAddress.getAddress().getHostAddress();
-            for (Pattern p : banned) {
-                if (p.matcher(addr).matches()) {
-                    Utils.info("rejected connection from banned address '%s'", addr);
-                    try {
-                        socket.close();
-                    } catch (IOException ioe) {}
-                    return;
-                }
-            }
-        }
-
-        Connection conn = new Connection(channel);
-        channels.put(channel, conn);
-        channel.register(selector, SelectionKey.OP_READ);
-        conn.onAccepted();
-    }
-
-    private static void onConnect(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
+        if (banned.isBanned(remoteAddress.getAddress())) {
+            Utils.info("rejected connection from banned address '%s'", remoteAddress.getAddress().getHostAddress());
             try {
-                channel.close();
-            } catch (IOException e) {}
+                socket.close();
+            } catch (IOException ioe) {}
             return;
         }
 
-        try {
-            if (channel.isConnectionPending())
-                channel.finishConnect();
-        } catch (IOException e) {
-            conn.onException(e);
+        if (transport == BlockingTransport.INSTANCE) {
+            Connection conn = new Connection(transport, channel);
+            BlockingTransport.INSTANCE.accept(conn, channel);
             return;
         }
-        key.interestOps(SelectionKey.OP_READ);
-        conn.onOpened();
+        Connection conn = new Connection(channel);
+        getSelector(conn).register(conn, channel, SelectionKey.OP_READ);
+        conn.onAccepted();
     }
 
-    private static void onRead(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            return;
+    // Hands an outbound connection to its transport once a connect slot is
+    // free, so a restarted cluster doesn't flood its peers' handshake paths.
+    // A slot is held until the connection is established or gone, or until
+    // CONNECT_TIMEOUT, whichever comes first.
+    // can be called from any thread
+    static void startConnect(Connection conn) {
+        synchronized (waitingConnects) {
+            waitingConnects.add(conn);
         }
+        dispatchConnects();
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(readBufferSize);
-        int numRead = 0;
-        while (true) {
-            try {
-                numRead = channel.read(buffer);
-            } catch (IOException e) {
-                conn.onException(e);
-                return;
-            }
-            Utils.debug("read %d from %s", numRead, conn);
-            if (numRead <= 0) break;
-            conn.onReadData(Arrays.copyOfRange(buffer.array(), 0, numRead));
-            if (numRead < readBufferSize) break;
-            buffer.clear();
-        }
-        if (numRead == -1) {
-            kill(conn);
-            conn.onClosed();
+    // Returns true if the connection was still waiting for a connect slot.
+    // can be called from any thread
+    static boolean cancelConnect(Connection conn) {
+        synchronized (waitingConnects) {
+            return waitingConnects.remove(conn);
         }
     }
 
-    private static void onWrite(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            return;
+    // Releases the connection's connect slot, if it has one.
+    // can be called from any thread
+    static void endConnect(Connection conn) {
+        boolean released;
+        synchronized (waitingConnects) {
+            released = activeConnects.remove(conn);
         }
+        if (released) dispatchConnects();
+    }
 
-        ByteBuffer buffer;
-        byte[] data;
-        int numWrote = 0;
+    private static void dispatchConnects() {
+        int limit = getConcurrentConnects();
         while (true) {
-            data = conn.onGetWriteData();
-            if (data == null) break;
-            buffer = ByteBuffer.wrap(data);
-            try {
-                numWrote = channel.write(buffer);
-            } catch (IOException e) {
-                conn.onException(e);
-                return;
+            final Connection conn;
+            synchronized (waitingConnects) {
+                if (waitingConnects.isEmpty() || (activeConnects.size() >= limit)) return;
+                Iterator<Connection> i = waitingConnects.iterator();
+                conn = i.next();
+                i.remove();
+                activeConnects.add(conn);
             }
-            Utils.debug("wrote %d to %s", numWrote, conn);
-            if (numWrote == data.length) continue;
-            conn.onPutWriteData(Arrays.copyOfRange(data, numWrote, data.length - 1));
-            break;
-        }
-        if (! conn.onHasWriteData()) {
-            key.interestOps(SelectionKey.OP_READ);
-            synchronized (closing) {
-                if (closing.contains(conn)) {
-                    kill(conn);
-                    conn.onClosed();
-                    return;
+            TimingWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    boolean active;
+                    synchronized (waitingConnects) {
+                        active = activeConnects.contains(conn);
+                    }
+                    if (! active) return;
+                    Utils.warning("connection to %s timed out", conn.getName());
+                    conn.close();
                 }
-            }
-            conn.onWriteCompleted();
+            }, CONNECT_TIMEOUT);
+            conn.getTransport().open(conn);
         }
     }
 
@@ -698,31 +807,53 @@ public final class Network {
 
     // can be called from any thread
     public static void close(Connection conn) {
+        NetworkSelector sel = conn.getSelector();
+        if (sel != null) {
+            sel.close(conn);
+            return;
+        }
+        // not handed to an I/O thread yet
         synchronized (closing) {
             closing.add(conn);
         }
-        wantWrite(conn);
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    // can be called from any thread
+    public static void abort(Connection conn) {
+        NetworkSelector sel = conn.getSelector();
+        if (sel != null)
+            sel.abort(conn);
+        else
+            // nothing was ever written
+            close(conn);
     }
 
     // can be called from any thread
     public static void wantWrite(Connection conn) {
-        SelectionKey selKey = conn.getChannel().keyFor(selector);
-        if ((selKey == null) || (! selKey.isValid())) return;
-        selKey.interestOps(selKey.interestOps() | SelectionKey.OP_WRITE);
+        NetworkSelector sel = conn.getSelector();
+        if (sel != null)
+            sel.wantWrite(conn);
+    }
 
-        /*
-        try {
-            Utils.debug("wantWrite to %s: %s %s %s %s", conn,
-                conn.getChannel().isOpen(),
-                conn.getChannel().isConnected(),
-                conn.getChannel().socket().isClosed(),
-                conn.getChannel().socket().isConnected());
-        } catch (Throwable t) {
-            Utils.debug("wantWrite to %s: got throwable: %s: %s", conn, t.getClass().getName(), t.getMessage());
-        }
-        */
-        
-        selector.wakeup();
+    // Runs a connection's frame decoding on the decoder threads.
+    // can be called from any thread
+    static void decode(Runnable task) {
+        ExecutorService exec = decoder;
+        if (exec != null)
+            try {
+                exec.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {}
+        task.run();
+    }
+
+    // Runs a connection's frame encryption on the decoder threads too, so
+    // it stays off the I/O threads.
+    // can be called from any thread
+    static void encode(Runnable task) {
+        decode(task);
     }
 
     private enum State {
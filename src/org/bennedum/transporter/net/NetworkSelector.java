@@ -0,0 +1,346 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bennedum.transporter.Utils;
+
+/**
+ * One I/O thread of the network manager.
+ * <p>
+ * Each selector owns the connections assigned to it and does all of their
+ * connecting, reading and writing. Connections are handed over by the
+ * acceptor thread through register, and all other threads only ever queue
+ * work and wake the selector up.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class NetworkSelector implements Runnable {
+
+    private final int number;
+    private final int selectInterval;
+    private final int readBufferSize;
+    private final Selector selector;
+    private Thread thread = null;
+    private volatile boolean stop = false;
+
+    private final Map<SocketChannel,Connection> channels = new HashMap<SocketChannel,Connection>();
+    private final List<Registration> registering = new ArrayList<Registration>();
+    private final Set<Connection> closing = new HashSet<Connection>();
+    private final Set<Connection> aborting = new HashSet<Connection>();
+
+    NetworkSelector(int number, int selectInterval, int readBufferSize) throws IOException {
+        this.number = number;
+        this.selectInterval = selectInterval;
+        this.readBufferSize = readBufferSize;
+        selector = Selector.open();
+    }
+
+    void start() {
+        thread = new Thread(this, "Transporter network I/O " + number);
+        thread.start();
+    }
+
+    // called from acceptor thread
+    void stop() {
+        stop = true;
+        selector.wakeup();
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {}
+        }
+    }
+
+    int getConnectionCount() {
+        synchronized (channels) {
+            return channels.size();
+        }
+    }
+
+    // can be called from any thread
+    void register(Connection conn, SocketChannel channel, int ops) {
+        conn.setSelector(this);
+        synchronized (registering) {
+            registering.add(new Registration(conn, channel, ops));
+        }
+        selector.wakeup();
+    }
+
+    // can be called from any thread
+    void close(Connection conn) {
+        synchronized (closing) {
+            closing.add(conn);
+        }
+        wantWrite(conn);
+        selector.wakeup();
+    }
+
+    // The connection has already dropped its queue, so it's killed on the
+    // next pass without waiting for anything to be written.
+    // can be called from any thread
+    void abort(Connection conn) {
+        synchronized (aborting) {
+            aborting.add(conn);
+        }
+        selector.wakeup();
+    }
+
+    // can be called from any thread
+    void closeAll() {
+        List<Connection> conns;
+        synchronized (channels) {
+            conns = new ArrayList<Connection>(channels.values());
+        }
+        for (Connection conn : conns)
+            conn.close();
+    }
+
+    // can be called from any thread
+    void wantWrite(Connection conn) {
+        SocketChannel channel = conn.getChannel();
+        if (channel == null) return;
+        SelectionKey selKey = channel.keyFor(selector);
+        if ((selKey == null) || (! selKey.isValid())) return;
+        selKey.interestOps(selKey.interestOps() | SelectionKey.OP_WRITE);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (! stop) {
+
+                // Register connections handed over by the acceptor
+                synchronized (registering) {
+                    for (Registration reg : registering) {
+                        try {
+                            reg.channel.register(selector, reg.ops);
+                            synchronized (channels) {
+                                channels.put(reg.channel, reg.conn);
+                            }
+                        } catch (IOException e) {
+                            reg.conn.onException(e);
+                        }
+                    }
+                    registering.clear();
+                }
+
+                // Kill aborted connections that are still open
+                List<Connection> aborted = null;
+                synchronized (aborting) {
+                    if (! aborting.isEmpty()) {
+                        aborted = new ArrayList<Connection>(aborting);
+                        aborting.clear();
+                    }
+                }
+                if (aborted != null)
+                    for (Connection conn : aborted) {
+                        if (conn.getChannel() == null) continue;
+                        kill(conn);
+                        conn.onClosed();
+                    }
+
+                // Close connections that have finished writing
+                synchronized (closing) {
+                    if (! closing.isEmpty()) {
+                        for (Connection conn : new HashSet<Connection>(closing)) {
+                            if (conn.onHasWriteData() && (conn.getChannel() != null)) continue;
+                            kill(conn);
+                            conn.onClosed();
+                        }
+                    }
+                }
+
+                if (selector.select(selectInterval) > 0) {
+                    Iterator keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey selKey = (SelectionKey)keys.next();
+                        keys.remove();
+                        if (! selKey.isValid()) continue;
+                        if (selKey.isConnectable()) onConnect(selKey);
+                        else if (selKey.isReadable()) onRead(selKey);
+                        else if (selKey.isWritable()) onWrite(selKey);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            Utils.severe(ioe, "network selector IOException: " + ioe.getMessage());
+        }
+
+        List<Connection> conns;
+        synchronized (channels) {
+            conns = new ArrayList<Connection>(channels.values());
+        }
+        for (Connection conn : conns) {
+            kill(conn);
+            conn.onClosed();
+        }
+        try {
+            selector.close();
+        } catch (IOException ioe) {}
+    }
+
+    private void kill(Connection conn) {
+        Utils.debug("kill %s", conn);
+        SocketChannel channel = conn.getChannel();
+        if (channel != null) {
+            SelectionKey selKey = channel.keyFor(selector);
+            if (selKey != null)
+                selKey.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            synchronized (channels) {
+                channels.remove(channel);
+            }
+        }
+        synchronized (closing) {
+            closing.remove(conn);
+        }
+        conn.onKilled();
+    }
+
+    private Connection getConnection(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn;
+        synchronized (channels) {
+            conn = channels.get(channel);
+        }
+        if (conn == null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+        return conn;
+    }
+
+    private void onConnect(SelectionKey key) {
+        Connection conn = getConnection(key);
+        if (conn == null) return;
+        SocketChannel channel = (SocketChannel)key.channel();
+        try {
+            if (channel.isConnectionPending())
+                channel.finishConnect();
+        } catch (IOException e) {
+            conn.onException(e);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        conn.onOpened();
+    }
+
+    private void onRead(SelectionKey key) {
+        Connection conn = getConnection(key);
+        if (conn == null) return;
+        SocketChannel channel = (SocketChannel)key.channel();
+
+        int numRead = 0;
+        while (true) {
+            // read straight into the connection's buffer
+            ByteBuffer buffer = conn.getReadBuffer(readBufferSize);
+            int space = buffer.remaining();
+            try {
+                numRead = channel.read(buffer);
+            } catch (IOException e) {
+                conn.onException(e);
+                return;
+            }
+            Utils.debug("read %d from %s", numRead, conn);
+            if (numRead <= 0) break;
+            conn.onReadData();
+            if (numRead < space) break;
+        }
+        if (numRead == -1) {
+            kill(conn);
+            conn.onClosed();
+        }
+    }
+
+    private void onWrite(SelectionKey key) {
+        Connection conn = getConnection(key);
+        if (conn == null) return;
+        SocketChannel channel = (SocketChannel)key.channel();
+
+        // batch up to what the socket will take in one go
+        int batchSize;
+        try {
+            batchSize = channel.socket().getSendBufferSize();
+        } catch (SocketException e) {
+            batchSize = readBufferSize;
+        }
+
+        ByteBuffer[] buffers;
+        long numWrote = 0;
+        while (true) {
+            buffers = conn.onGetWriteData(batchSize);
+            if (buffers == null) break;
+            try {
+                numWrote = channel.write(buffers);
+            } catch (IOException e) {
+                conn.onException(e);
+                return;
+            }
+            Utils.debug("wrote %d to %s", numWrote, conn);
+            conn.onWroteData(buffers);
+            // a short write means the socket is full, so wait for the next OP_WRITE
+            if (buffers[buffers.length - 1].hasRemaining()) break;
+        }
+        if (! conn.onHasWriteData()) {
+            key.interestOps(SelectionKey.OP_READ);
+            synchronized (closing) {
+                if (closing.contains(conn)) {
+                    kill(conn);
+                    conn.onClosed();
+                    return;
+                }
+            }
+            conn.onWriteCompleted();
+        } else if (buffers == null) {
+            // the rest is still being encrypted, and the encrypting thread
+            // asks for a write once it's done, unless it already has
+            key.interestOps(SelectionKey.OP_READ);
+            if (conn.onHasWriteBuffers())
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private static final class Registration {
+        Connection conn;
+        SocketChannel channel;
+        int ops;
+        Registration(Connection conn, SocketChannel channel, int ops) {
+            this.conn = conn;
+            this.channel = channel;
+            this.ops = ops;
+        }
+    }
+
+}
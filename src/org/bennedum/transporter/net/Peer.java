@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+/**
+ * The remote end of a connection, as seen by the local server.
+ * <p>
+ * Connections only talk to their peer through this interface, so they can be
+ * driven by something other than a configured server, like the cluster
+ * simulator.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public interface Peer {
+
+    public String getName();
+
+    public String getKey();
+
+    public boolean isEnabled();
+
+    public boolean isConnectionConnected();
+
+    public boolean isConnecting();
+
+    public void disconnect(boolean allowReconnect);
+
+    public void setConnection(Connection conn);
+
+    public Connection getConnection();
+
+    public boolean connectionMessagesSuppressed();
+
+    public PeerStats getPeerStats();
+
+    // Called from the network threads
+
+    public void onConnected(String version);
+
+    public void onDisconnected();
+
+    public void onMessage(Message message);
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+/**
+ * Link health counters for a single remote server.
+ * <p>
+ * The counters live as long as the server does, so they span reconnects.
+ * Round trip times are kept in a fixed histogram, so recording a sample
+ * never allocates.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class PeerStats {
+
+    // upper bounds of the round trip time buckets, in millis, the last bucket is everything slower
+    private static final int[] RTT_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000};
+
+    private final long startTime = System.currentTimeMillis();
+
+    private long bytesIn = 0;
+    private long framesIn = 0;
+    private long bytesOut = 0;
+    private long framesOut = 0;
+    private long decryptTime = 0;
+    private long decodeTime = 0;
+    private long encodeTime = 0;
+    private long encryptTime = 0;
+
+    private final long[] rttCounts = new long[RTT_BUCKETS.length + 1];
+    private long rttSamples = 0;
+    private long rttTotal = 0;
+    private long rttMin = 0;
+    private long rttMax = 0;
+    private long rttLast = 0;
+
+    private int connects = 0;
+    private int disconnects = 0;
+
+    private long messagesDropped = 0;
+    private long messagesCollapsed = 0;
+    private int congestions = 0;
+
+    // called from the selector thread
+    synchronized void onFrameRead(int bytes) {
+        framesIn++;
+        bytesIn += bytes;
+    }
+
+    // times are in nanos
+    // called from a decoder thread
+    synchronized void onFrameDecoded(long decrypt, long decode) {
+        decryptTime += decrypt;
+        decodeTime += decode;
+    }
+
+    // times are in nanos
+    synchronized void onFrameQueued(int bytes, long encode, long encrypt) {
+        framesOut++;
+        bytesOut += bytes;
+        encodeTime += encode;
+        encryptTime += encrypt;
+    }
+
+    // time is in nanos
+    public synchronized void onRoundTrip(long time) {
+        long micros = time / 1000;
+        int bucket = 0;
+        while ((bucket < RTT_BUCKETS.length) && (micros > (RTT_BUCKETS[bucket] * 1000L)))
+            bucket++;
+        rttCounts[bucket]++;
+        if ((rttSamples == 0) || (micros < rttMin)) rttMin = micros;
+        if (micros > rttMax) rttMax = micros;
+        rttSamples++;
+        rttTotal += micros;
+        rttLast = micros;
+    }
+
+    // a bulk message was thrown away because the link is congested
+    public synchronized void onMessageDropped() {
+        messagesDropped++;
+    }
+
+    // an unsent state message was replaced by a newer one
+    synchronized void onMessageCollapsed() {
+        messagesCollapsed++;
+    }
+
+    synchronized void onCongested() {
+        congestions++;
+    }
+
+    public synchronized void onConnected() {
+        connects++;
+    }
+
+    public synchronized void onDisconnected() {
+        disconnects++;
+    }
+
+    public synchronized int getReconnects() {
+        return Math.max(0, connects - 1);
+    }
+
+    public synchronized long getRoundTripSamples() {
+        return rttSamples;
+    }
+
+    // Returns the round trip time, in millis, that the given fraction of
+    // samples were at or under, rounded up to the bucket boundary. Returns -1
+    // if there are no samples, or Integer.MAX_VALUE if it falls in the last
+    // bucket.
+    public synchronized int getRoundTripPercentile(double fraction) {
+        if (rttSamples == 0) return -1;
+        long needed = (long)Math.ceil(rttSamples * fraction);
+        long seen = 0;
+        for (int i = 0; i < RTT_BUCKETS.length; i++) {
+            seen += rttCounts[i];
+            if (seen >= needed) return RTT_BUCKETS[i];
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    // Returns all the counters, with times in micros.
+    public synchronized Message toMessage() {
+        Message m = new Message();
+        m.put("uptime", (System.currentTimeMillis() - startTime) / 1000);
+        m.put("bytesIn", bytesIn);
+        m.put("framesIn", framesIn);
+        m.put("bytesOut", bytesOut);
+        m.put("framesOut", framesOut);
+        m.put("decryptTime", decryptTime / 1000);
+        m.put("decodeTime", decodeTime / 1000);
+        m.put("encodeTime", encodeTime / 1000);
+        m.put("encryptTime", encryptTime / 1000);
+        m.put("connects", connects);
+        m.put("disconnects", disconnects);
+        m.put("reconnects", getReconnects());
+        m.put("messagesDropped", messagesDropped);
+        m.put("messagesCollapsed", messagesCollapsed);
+        m.put("congestions", congestions);
+
+        Message rtt = new Message();
+        rtt.put("samples", rttSamples);
+        if (rttSamples > 0) {
+            rtt.put("min", rttMin);
+            rtt.put("max", rttMax);
+            rtt.put("avg", rttTotal / rttSamples);
+            rtt.put("last", rttLast);
+        }
+        Message histogram = new Message();
+        for (int i = 0; i < RTT_BUCKETS.length; i++)
+            histogram.put("le" + RTT_BUCKETS[i] + "ms", rttCounts[i]);
+        histogram.put("gt" + RTT_BUCKETS[RTT_BUCKETS.length - 1] + "ms", rttCounts[RTT_BUCKETS.length]);
+        rtt.put("histogram", histogram);
+        m.put("rtt", rtt);
+        return m;
+    }
+
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    public synchronized long getFramesIn() {
+        return framesIn;
+    }
+
+    public synchronized long getBytesOut() {
+        return bytesOut;
+    }
+
+    public synchronized long getFramesOut() {
+        return framesOut;
+    }
+
+    public synchronized long getMessagesDropped() {
+        return messagesDropped;
+    }
+
+    public synchronized long getMessagesCollapsed() {
+        return messagesCollapsed;
+    }
+
+    public synchronized int getCongestions() {
+        return congestions;
+    }
+
+    // The average times below are in micros per frame.
+
+    public synchronized long getAverageDecryptTime() {
+        return average(decryptTime, framesIn) / 1000;
+    }
+
+    public synchronized long getAverageDecodeTime() {
+        return average(decodeTime, framesIn) / 1000;
+    }
+
+    public synchronized long getAverageEncodeTime() {
+        return average(encodeTime, framesOut) / 1000;
+    }
+
+    public synchronized long getAverageEncryptTime() {
+        return average(encryptTime, framesOut) / 1000;
+    }
+
+    // Returns the average round trip time in micros.
+    public synchronized long getAverageRoundTrip() {
+        return average(rttTotal, rttSamples);
+    }
+
+    private static long average(long total, long count) {
+        return (count == 0) ? 0 : (total / count);
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bennedum.transporter.Server;
+import org.bennedum.transporter.Utils;
+
+/**
+ * Serial outbound message queue for a single server.
+ * <p>
+ * Messages are encoded and encrypted off the main thread by a single worker
+ * task that is only scheduled when the queue goes from idle to busy. The
+ * worker drains the queue in batches until it's empty, so messages of the
+ * same priority reach the connection in the order they were sent. Higher
+ * priority messages are always drained first.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class SendQueue implements Runnable {
+
+    private static final int BATCH_SIZE = 64;
+
+    private final Server server;
+    private final List<Message>[] queues = createQueues();
+    private final List<String>[] collapseKeys = createQueues();
+    private boolean draining = false;
+
+    private int maxQueueDepth = 0;
+    private long messagesSent = 0;
+    private long messagesDropped = 0;
+    private long encodeTime = 0;
+
+    public SendQueue(Server server) {
+        this.server = server;
+    }
+
+    // can be called from any thread
+    public void add(Message message, int priority) {
+        add(message, priority, null);
+    }
+
+    // The collapse key is handed to the connection, see
+    // Connection.sendMessage.
+    // can be called from any thread
+    public void add(Message message, int priority, String collapseKey) {
+        synchronized (this) {
+            queues[priority].add(message);
+            collapseKeys[priority].add(collapseKey);
+            int depth = getQueueDepth();
+            if (depth > maxQueueDepth)
+                maxQueueDepth = depth;
+            if (draining) return;
+            draining = true;
+        }
+        if (Utils.worker(this) == -1)
+            synchronized (this) {
+                draining = false;
+            }
+    }
+
+    // can be called from any thread
+    public void clear() {
+        synchronized (this) {
+            for (List<Message> queue : queues) {
+                messagesDropped += queue.size();
+                queue.clear();
+            }
+            for (List<String> keys : collapseKeys)
+                keys.clear();
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (List<Message> queue : queues)
+            depth += queue.size();
+        return depth;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public synchronized long getMessagesDropped() {
+        return messagesDropped;
+    }
+
+    // Returns the average time, in microseconds, spent encoding and queueing
+    // each message.
+    public synchronized long getAverageEncodeTime() {
+        if (messagesSent == 0) return 0;
+        return (encodeTime / messagesSent) / 1000;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T>[] createQueues() {
+        List<T>[] queues = new List[Connection.PRIORITY_BULK + 1];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = new ArrayList<T>();
+        return queues;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<Message> batch;
+            List<String> batchKeys;
+            int priority = 0;
+            synchronized (this) {
+                while ((priority < queues.length) && queues[priority].isEmpty())
+                    priority++;
+                if (priority == queues.length) {
+                    draining = false;
+                    return;
+                }
+                List<Message> queue = queues[priority];
+                List<String> keys = collapseKeys[priority];
+                if (queue.size() <= BATCH_SIZE) {
+                    batch = new ArrayList<Message>(queue);
+                    batchKeys = new ArrayList<String>(keys);
+                    queue.clear();
+                    keys.clear();
+                } else {
+                    List<Message> head = queue.subList(0, BATCH_SIZE);
+                    batch = new ArrayList<Message>(head);
+                    head.clear();
+                    List<String> keysHead = keys.subList(0, BATCH_SIZE);
+                    batchKeys = new ArrayList<String>(keysHead);
+                    keysHead.clear();
+                }
+            }
+            Connection connection = server.getConnection();
+            if ((connection == null) || (! connection.isOpen())) {
+                Utils.debug("dropping %d messages to '%s' because it is not connected", batch.size(), server.getName());
+                synchronized (this) {
+                    messagesDropped += batch.size();
+                }
+                continue;
+            }
+            long startTime = System.nanoTime();
+            connection.sendMessages(batch, batchKeys, true, priority);
+            long time = System.nanoTime() - startTime;
+            synchronized (this) {
+                messagesSent += batch.size();
+                encodeTime += time;
+            }
+        }
+    }
+
+}
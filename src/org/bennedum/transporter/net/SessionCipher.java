@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated per-connection encryption using AES in CTR mode with an
+ * HMAC-SHA256 tag over each frame (encrypt-then-MAC).
+ * <p>
+ * Each direction of a connection gets its own encryption and MAC keys, derived
+ * from the shared server keys and a nonce from each side of the handshake.
+ * Frames carry no IV; both sides count frames, so the frame sequence number
+ * is used as the counter block and is covered by the tag, which also rejects
+ * replayed, dropped, or reordered frames.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class SessionCipher {
+
+    public static final String NAME = "aes";
+
+    private static final int NONCE_SIZE = 16;
+    private static final int KEY_SIZE = 16;
+    private static final int TAG_SIZE = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    public static String createNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        synchronized (random) {
+            random.nextBytes(nonce);
+        }
+        StringBuilder b = new StringBuilder();
+        for (byte n : nonce) {
+            int v = n & 0xff;
+            if (v < 16) b.append('0');
+            b.append(Integer.toHexString(v));
+        }
+        return b.toString();
+    }
+
+    private final javax.crypto.Cipher encryptCipher;
+    private final javax.crypto.Cipher decryptCipher;
+    private final SecretKeySpec encryptKey;
+    private final SecretKeySpec decryptKey;
+    private final Mac encryptMac;
+    private final Mac decryptMac;
+    private long encryptSequence = 0;
+    private long decryptSequence = 0;
+
+    public SessionCipher(String secret, String clientNonce, String serverNonce, boolean client) throws GeneralSecurityException {
+        byte[] prk = hmac(bytes(secret), bytes("transporter session:" + clientNonce + ":" + serverNonce));
+        byte[] c2sKey = Arrays.copyOf(hmac(prk, bytes("client encrypt")), KEY_SIZE);
+        byte[] c2sMac = hmac(prk, bytes("client mac"));
+        byte[] s2cKey = Arrays.copyOf(hmac(prk, bytes("server encrypt")), KEY_SIZE);
+        byte[] s2cMac = hmac(prk, bytes("server mac"));
+
+        encryptKey = new SecretKeySpec(client ? c2sKey : s2cKey, "AES");
+        decryptKey = new SecretKeySpec(client ? s2cKey : c2sKey, "AES");
+        encryptCipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
+        decryptCipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
+        encryptMac = Mac.getInstance("HmacSHA256");
+        encryptMac.init(new SecretKeySpec(client ? c2sMac : s2cMac, "HmacSHA256"));
+        decryptMac = Mac.getInstance("HmacSHA256");
+        decryptMac.init(new SecretKeySpec(client ? s2cMac : c2sMac, "HmacSHA256"));
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    // Frames must be put on the wire in the order they're encrypted.
+    public synchronized byte[] encrypt(byte flags, byte[] data) throws GeneralSecurityException {
+        long seq = encryptSequence++;
+        encryptCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, encryptKey, counter(seq));
+        byte[] out = new byte[data.length + TAG_SIZE];
+        encryptCipher.doFinal(data, 0, data.length, out, 0);
+        byte[] tag = tag(encryptMac, seq, flags, out, 0, data.length);
+        System.arraycopy(tag, 0, out, data.length, TAG_SIZE);
+        return out;
+    }
+
+    public byte[] decrypt(byte flags, byte[] data) throws GeneralSecurityException {
+        return decrypt(flags, data, 0, data.length);
+    }
+
+    public synchronized byte[] decrypt(byte flags, byte[] data, int offset, int length) throws GeneralSecurityException {
+        if (length < TAG_SIZE)
+            throw new GeneralSecurityException("frame is too short");
+        int len = length - TAG_SIZE;
+        long seq = decryptSequence;
+        byte[] tag = tag(decryptMac, seq, flags, data, offset, len);
+        if (! MessageDigest.isEqual(tag, Arrays.copyOfRange(data, offset + len, offset + length)))
+            throw new GeneralSecurityException("frame authentication failed");
+        decryptSequence++;
+        decryptCipher.init(javax.crypto.Cipher.DECRYPT_MODE, decryptKey, counter(seq));
+        return decryptCipher.doFinal(data, offset, len);
+    }
+
+    private static IvParameterSpec counter(long seq) {
+        // high 64 bits are the frame, low 64 bits count blocks within it
+        byte[] iv = new byte[16];
+        for (int i = 0; i < 8; i++)
+            iv[i] = (byte)(seq >>> (56 - (i * 8)));
+        return new IvParameterSpec(iv);
+    }
+
+    private static byte[] tag(Mac mac, long seq, byte flags, byte[] data, int offset, int len) {
+        for (int i = 0; i < 8; i++)
+            mac.update((byte)(seq >>> (56 - (i * 8))));
+        mac.update(flags);
+        mac.update(data, offset, len);
+        return Arrays.copyOf(mac.doFinal(), TAG_SIZE);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import org.bennedum.transporter.Servers;
+
+/**
+ * The TCP transport, run by the network manager and its I/O threads.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class SocketTransport implements Transport {
+
+    static final SocketTransport INSTANCE = new SocketTransport();
+
+    private SocketTransport() {}
+
+    @Override
+    public void open(Connection conn) {
+        Network.open(conn);
+    }
+
+    @Override
+    public void close(Connection conn) {
+        Network.close(conn);
+    }
+
+    @Override
+    public void abort(Connection conn) {
+        Network.abort(conn);
+    }
+
+    @Override
+    public void wantWrite(Connection conn) {
+        Network.wantWrite(conn);
+    }
+
+    @Override
+    public boolean isConnected(Connection conn) {
+        SocketChannel channel = conn.getChannel();
+        if (channel == null) return false;
+        Socket socket = channel.socket();
+        return (socket != null) && socket.isConnected() && (! socket.isClosed());
+    }
+
+    @Override
+    public String getLocalKey() {
+        return Network.getCachedKey();
+    }
+
+    @Override
+    public Peer findPeer(String keyDigest) {
+        return Servers.findByKeyDigest(keyDigest);
+    }
+
+}
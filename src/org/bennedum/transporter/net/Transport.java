@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.net;
+
+/**
+ * Moves a connection's frames between the local server and its peer.
+ * <p>
+ * A transport owns the I/O for its connections. It calls back into the
+ * connection exactly like the network manager does: onOpened or onException
+ * when an outbound connection is opened, onAccepted for inbound connections,
+ * getReadBuffer and onReadData as data arrives, onGetWriteData and
+ * onWroteData to drain the outbound queue, and onKilled and onClosed when
+ * the link goes away. The read callbacks for a single connection must come
+ * from one thread at a time, and so must the write callbacks.
+ * </p>
+ * <p>
+ * A transport also stands in for the local server during the handshake, by
+ * providing the local key and finding the peer that sent a key digest.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public interface Transport {
+
+    // Starts opening an outbound connection to its connect address.
+    // can be called from any thread
+    public void open(Connection conn);
+
+    // Closes the connection once its queued data has been written.
+    // can be called from any thread
+    public void close(Connection conn);
+
+    // Closes the connection without waiting for anything to be written.
+    // can be called from any thread
+    public void abort(Connection conn);
+
+    // Tells the transport the connection has data to write.
+    // can be called from any thread
+    public void wantWrite(Connection conn);
+
+    public boolean isConnected(Connection conn);
+
+    public String getLocalKey();
+
+    // Returns the peer whose key, combined with the local key, produces the
+    // digest, or null.
+    public Peer findPeer(String keyDigest);
+
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.bennedum.transporter.Config;
+import org.bennedum.transporter.TimingWheel;
+import org.bennedum.transporter.config.Configuration;
+import org.bennedum.transporter.net.Connection;
+import org.bennedum.transporter.net.LoopbackTransport;
+import org.bennedum.transporter.net.Message;
+import org.bennedum.transporter.net.Network;
+import org.bennedum.transporter.net.Peer;
+import org.bennedum.transporter.net.PeerStats;
+
+/**
+ * Runs a cluster of simulated servers in one JVM, connected by the loopback
+ * transport, and reports protocol throughput and latency.
+ * <p>
+ * Every node connects to every other node with a real connection, so the
+ * handshake, framing, encryption, compression and priority lanes are all
+ * exercised. The nodes don't run the plugin, they just send messages shaped
+ * like the real ones and answer reservations.
+ * </p>
+ * <p>
+ * Arguments are name=value pairs, see the defaults below. For example:
+ * <pre>
+ * java ... ClusterSimulator nodes=8 chat=5000 cipher=legacy compression=0
+ * </pre>
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public class ClusterSimulator {
+
+    private static final int BASE_PORT = 25600;
+    private static final long PHASE_TIMEOUT = 60000;
+
+    private static int nodeCount = 4;
+    private static int players = 50;
+    private static int chat = 1000;
+    private static int reservations = 500;
+    private static int gates = 200;
+
+    private static final List<Node> nodes = new ArrayList<Node>();
+    private static volatile Phase phase = null;
+
+    public static void main(String[] args) throws Exception {
+        Config.setConfiguration(new Configuration(new File("simulator.yml")));
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2)
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            String name = parts[0];
+            String value = parts[1];
+            if (name.equals("nodes")) nodeCount = Integer.parseInt(value);
+            else if (name.equals("players")) players = Integer.parseInt(value);
+            else if (name.equals("chat")) chat = Integer.parseInt(value);
+            else if (name.equals("reservations")) reservations = Integer.parseInt(value);
+            else if (name.equals("gates")) gates = Integer.parseInt(value);
+            else if (name.equals("cipher")) Network.setCipher(value);
+            else if (name.equals("compression")) Network.setCompressionThreshold(Integer.parseInt(value));
+            else
+                throw new IllegalArgumentException("unknown argument: " + name);
+        }
+        if (nodeCount < 2)
+            throw new IllegalArgumentException("at least 2 nodes are required");
+
+        System.out.println(String.format("%d nodes, cipher %s, compression threshold %d",
+                nodeCount, Network.getCipher(), Network.getCompressionThreshold()));
+
+        for (int i = 0; i < nodeCount; i++)
+            nodes.add(new Node(i));
+        for (Node node : nodes)
+            for (Node other : nodes)
+                if (other != node) node.addPeer(other);
+        for (Node node : nodes)
+            node.transport.start();
+
+        long startTime = System.nanoTime();
+        for (Node node : nodes)
+            node.connect();
+        waitForConnections();
+        System.out.println(String.format("connected %d links in %.1fms",
+                nodeCount * (nodeCount - 1) / 2, (System.nanoTime() - startTime) / 1e6));
+
+        runPhase(new Phase("playerJoin", players * nodeCount * (nodeCount - 1), false) {
+            @Override
+            void send(Node from, Random random) {
+                for (int i = 0; i < players; i++) {
+                    Message m = createMessage("playerJoin");
+                    m.put("name", from.name + "-player" + i);
+                    m.put("displayName", from.name + " Player " + i);
+                    m.put("world", "world");
+                    m.put("hasReservation", false);
+                    from.broadcast(m, Connection.PRIORITY_STATE);
+                }
+            }
+        });
+
+        runPhase(new Phase("chat", chat * nodeCount * (nodeCount - 1), false) {
+            @Override
+            void send(Node from, Random random) {
+                for (int i = 0; i < chat; i++) {
+                    Message m = createMessage("chat");
+                    m.put("player", from.name + "-player" + random.nextInt(Math.max(1, players)));
+                    m.put("message", "chat message number " + i + " from " + from.name);
+                    from.broadcast(m, Connection.PRIORITY_BULK);
+                }
+            }
+        });
+
+        runPhase(new Phase("reservation", reservations * nodeCount, true) {
+            @Override
+            void send(Node from, Random random) {
+                for (int i = 0; i < reservations; i++) {
+                    SimPeer to = from.randomPeer(random);
+                    Message m = createMessage("reservation");
+                    m.put("reservation", createReservation(from, i, random));
+                    to.send(m, Connection.PRIORITY_CONTROL);
+                }
+            }
+        });
+
+        runPhase(new Phase("gateChurn", gates * 2 * nodeCount * (nodeCount - 1), false) {
+            @Override
+            void send(Node from, Random random) {
+                for (int i = 0; i < gates; i++) {
+                    Message m = createMessage("gateCreated");
+                    m.put("type", "BLOCK");
+                    m.put("name", "world." + from.name + "-gate" + i);
+                    from.broadcast(m, Connection.PRIORITY_STATE);
+                    m = createMessage("gateDestroyed");
+                    m.put("name", "world." + from.name + "-gate" + i);
+                    from.broadcast(m, Connection.PRIORITY_STATE);
+                }
+            }
+        });
+
+        long bytesOut = 0;
+        long framesOut = 0;
+        for (Node node : nodes)
+            for (SimPeer peer : node.peers.values()) {
+                bytesOut += peer.stats.getBytesOut();
+                framesOut += peer.stats.getFramesOut();
+            }
+        System.out.println(String.format("total: %d frames, %d bytes", framesOut, bytesOut));
+
+        for (Node node : nodes)
+            node.transport.stop();
+        TimingWheel.stop();
+    }
+
+    private static void waitForConnections() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PHASE_TIMEOUT;
+        while (true) {
+            boolean connected = true;
+            for (Node node : nodes)
+                for (SimPeer peer : node.peers.values())
+                    if (! peer.isConnectionConnected()) connected = false;
+            if (connected) return;
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("nodes didn't connect");
+            Thread.sleep(10);
+        }
+    }
+
+    // Every node sends its part of the phase from its own thread.
+    private static void runPhase(final Phase p) throws InterruptedException {
+        phase = p;
+        p.startTime = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Node node : nodes) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    p.send(node, new Random(node.number));
+                }
+            }, "Simulated " + node.name);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+        p.await();
+        p.report();
+        phase = null;
+    }
+
+    private static Message createMessage(String command) {
+        Message m = new Message();
+        m.put("command", command);
+        m.put("simTime", System.nanoTime());
+        return m;
+    }
+
+    private static Message createReservation(Node from, int id, Random random) {
+        Message m = new Message();
+        m.put("id", id);
+        m.put("entityType", "PLAYER");
+        m.put("entityId", random.nextInt());
+        m.put("playerName", from.name + "-player" + random.nextInt(Math.max(1, players)));
+        m.put("velX", random.nextDouble());
+        m.put("velY", 0.0);
+        m.put("velZ", random.nextDouble());
+        m.put("fromX", random.nextDouble() * 1000);
+        m.put("fromY", 64.0);
+        m.put("fromZ", random.nextDouble() * 1000);
+        m.put("fromWorld", "world");
+        List<Message> inventory = new ArrayList<Message>();
+        for (int slot = 0; slot < 36; slot++) {
+            Message item = new Message();
+            item.put("type", random.nextInt(400));
+            item.put("amount", 1 + random.nextInt(64));
+            item.put("durability", 0);
+            inventory.add(item);
+        }
+        m.put("inventory", inventory);
+        m.put("health", 20);
+        m.put("foodLevel", 20);
+        m.put("gameMode", "SURVIVAL");
+        m.put("fromGate", "world." + from.name + "-gate");
+        m.put("toGate", "world.destination");
+        return m;
+    }
+
+    // Runs once per node, on the node's I/O thread or a decoder thread.
+    private static void onMessage(SimPeer from, Message message) {
+        String command = message.getString("command");
+        Phase p = phase;
+        if (command.equals("reservation")) {
+            Message reply = new Message();
+            reply.put("command", "reservationApproved");
+            reply.put("id", message.getMessage("reservation").getInt("id"));
+            reply.put("simTime", message.getLong("simTime"));
+            from.send(reply, Connection.PRIORITY_CONTROL);
+            return;
+        }
+        if (p == null) return;
+        if (p.roundTrip && (! command.equals("reservationApproved"))) return;
+        p.onReceived(System.nanoTime() - message.getLong("simTime"));
+    }
+
+    private static abstract class Phase {
+
+        final String name;
+        final int expected;
+        final boolean roundTrip;
+        long startTime;
+        private long endTime;
+        private long[] latencies;
+        private int received = 0;
+
+        Phase(String name, int expected, boolean roundTrip) {
+            this.name = name;
+            this.expected = expected;
+            this.roundTrip = roundTrip;
+            latencies = new long[expected];
+        }
+
+        abstract void send(Node from, Random random);
+
+        synchronized void onReceived(long latency) {
+            if (received < latencies.length)
+                latencies[received] = latency;
+            received++;
+            if (received == expected) {
+                endTime = System.nanoTime();
+                notifyAll();
+            }
+        }
+
+        synchronized void await() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + PHASE_TIMEOUT;
+            while (received < expected) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    endTime = System.nanoTime();
+                    System.out.println(String.format("%s: timed out after receiving %d of %d messages", name, received, expected));
+                    return;
+                }
+                wait(wait);
+            }
+        }
+
+        synchronized void report() {
+            int count = Math.min(received, latencies.length);
+            if (count == 0) return;
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long l : sorted) total += l;
+            double elapsed = (endTime - startTime) / 1e9;
+            System.out.println(String.format("%-12s %7d msgs in %8.1fms, %9.0f msgs/s, %s latency avg %.2fms p50 %.2fms p99 %.2fms max %.2fms",
+                    name, count, elapsed * 1000, count / elapsed,
+                    roundTrip ? "round trip" : "one way",
+                    (total / count) / 1e6,
+                    sorted[count / 2] / 1e6,
+                    sorted[Math.min(count - 1, (int)(count * 0.99))] / 1e6,
+                    sorted[count - 1] / 1e6));
+        }
+
+    }
+
+    private static final class Node {
+
+        final int number;
+        final String name;
+        final String key;
+        final LoopbackTransport transport;
+        final Map<String,SimPeer> peers = new HashMap<String,SimPeer>();
+        private final List<SimPeer> peerList = new ArrayList<SimPeer>();
+
+        Node(int number) {
+            this.number = number;
+            name = "node" + number;
+            key = "key-" + number;
+            transport = new LoopbackTransport("127.0.0.1:" + (BASE_PORT + number), key);
+        }
+
+        void addPeer(Node other) {
+            SimPeer peer = new SimPeer(this, other);
+            peers.put(other.name, peer);
+            peerList.add(peer);
+            transport.addPeer(peer);
+        }
+
+        // the lower numbered node of each pair opens the connection
+        void connect() {
+            for (SimPeer peer : peerList)
+                if (peer.remote.number > number) {
+                    Connection conn = new Connection(transport, peer, peer.remote.transport.getAddress());
+                    peer.setConnection(conn);
+                    conn.open();
+                }
+        }
+
+        void broadcast(Message message, int priority) {
+            for (SimPeer peer : peerList)
+                peer.send(message, priority);
+        }
+
+        SimPeer randomPeer(Random random) {
+            return peerList.get(random.nextInt(peerList.size()));
+        }
+
+    }
+
+    // Another node, as seen from the local node.
+    private static final class SimPeer implements Peer {
+
+        final Node local;
+        final Node remote;
+        final PeerStats stats = new PeerStats();
+        private volatile Connection connection = null;
+        private volatile boolean connected = false;
+
+        SimPeer(Node local, Node remote) {
+            this.local = local;
+            this.remote = remote;
+        }
+
+        void send(Message message, int priority) {
+            Connection conn = connection;
+            if (conn != null)
+                conn.sendMessage(message, true, priority);
+        }
+
+        @Override
+        public String getName() {
+            return remote.name;
+        }
+
+        // the key the remote node uses as its own
+        @Override
+        public String getKey() {
+            return remote.key;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnectionConnected() {
+            Connection conn = connection;
+            return connected && (conn != null) && conn.isOpen();
+        }
+
+        @Override
+        public boolean isConnecting() {
+            return false;
+        }
+
+        @Override
+        public void disconnect(boolean allowReconnect) {
+            Connection conn = connection;
+            if (conn != null) conn.close();
+        }
+
+        @Override
+        public void setConnection(Connection conn) {
+            connection = conn;
+        }
+
+        @Override
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public boolean connectionMessagesSuppressed() {
+            return false;
+        }
+
+        @Override
+        public PeerStats getPeerStats() {
+            return stats;
+        }
+
+        @Override
+        public void onConnected(String version) {
+            connected = true;
+            stats.onConnected();
+        }
+
+        @Override
+        public void onDisconnected() {
+            connected = false;
+            connection = null;
+            stats.onDisconnected();
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            if (message.getString("error") != null) {
+                System.out.println(String.format("%s: %s complained: %s", local.name, remote.name, message.getString("error")));
+                return;
+            }
+            ClusterSimulator.onMessage(this, message);
+        }
+
+    }
+
+}
@@ -15,8 +15,9 @@
  */
 package org.bennedum.transporter.test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import org.bennedum.transporter.GateMap.Bounds;
 import org.bennedum.transporter.GateMap.Point;
 import org.bennedum.transporter.GateMap.Volume;
 import org.bennedum.transporter.LocalGateImpl;
@@ -32,108 +33,79 @@ public class GateMap {
     
     public static void main(String[] args) {
         
-        //testBounds();
-        //testVolume();
+        //testIndex();
         //benchmark();
         
     }
     
-    private static void testBounds() {
-        Bounds b = new Bounds();
-        b.set(new Point(-10, -10, -10));
-        b.expand(new Point(10, 10, 10));
-        System.out.println("Bounds: " + b);
-        
-        Point c = new Point(0, 0, 0);
-        System.out.println("Trim @ " + c + ":");
-        for (int q = 0; q < 4; q++)
-            System.out.println(" q=" + q + ": " + b.trim(c, q));
+    private static void testIndex() {
+        org.bennedum.transporter.GateMap gm = new org.bennedum.transporter.GateMap();
+        try {
+            // small enough to go on the grid
+            TestGate small = new TestGate(null, "Small", "tab", BlockFace.NORTH, new Random(1));
+            Volume v = new Volume(small);
+            v.setBounds(new Point(-20, 60, -20), new Point(20, 70, 20));
+            gm.put(v);
+            // too big for the grid
+            TestGate big = new TestGate(null, "Big", "tab", BlockFace.NORTH, new Random(2));
+            v = new Volume(big);
+            v.setBounds(new Point(-1000, 0, -1000), new Point(1000, 10, 1000));
+            gm.put(v);
+            System.out.println("Map: " + gm.size() + " volumes, " + gm.chunkCount() + " chunks");
 
-        c = new Point(-10, 0, -10);
-        System.out.println("Trim @ " + c + ":");
-        for (int q = 0; q < 4; q++)
-            System.out.println(" q=" + q + ": " + b.trim(c, q));
-        
-        c = new Point(-11, 0, -11);
-        System.out.println("Trim @ " + c + ":");
-        for (int q = 0; q < 4; q++)
-            System.out.println(" q=" + q + ": " + b.trim(c, q));
-        
-        c = new Point(10, 0, 10);
-        System.out.println("Trim @ " + c + ":");
-        for (int q = 0; q < 4; q++)
-            System.out.println(" q=" + q + ": " + b.trim(c, q));
-        
-        c = new Point(11, 0, 11);
-        System.out.println("Trim @ " + c + ":");
-        for (int q = 0; q < 4; q++)
-            System.out.println(" q=" + q + ": " + b.trim(c, q));
+            printGate(gm, 0, 65, 0);
+            printGate(gm, -20, 60, 20);
+            printGate(gm, 21, 65, 0);
+            printGate(gm, 500, 5, -500);
+            printGate(gm, 500, 11, -500);
+
+            gm.removeGate(small);
+            System.out.println("Removed small: " + gm.size() + " volumes, " + gm.chunkCount() + " chunks");
+            printGate(gm, 0, 65, 0);
+            printGate(gm, 0, 5, 0);
+        } catch (GateException ge) {
+            System.out.println(ge.getMessage());
+        }
     }
     
-    private static void testVolume() {
-        Volume v = new Volume(null);
-        v.setBounds(new Point(-10, -10, -10), new Point(10, 10, 10));
-        System.out.println("Volume: " + v);
-
-        Point s = new Point(0, 0, 0);
-        System.out.println("Split @ " + s + ":");
-        Volume[] vols = v.split(s);
-        for (int i = 0; i < vols.length; i++)
-            System.out.println(" i=" + i + ": " + vols[i]);
-        
-        v = new Volume(null);
-        for (int i = 0; i < 10; i++)
-            v.addPoint(new Point(i, i, i));
-        System.out.println("Volume: " + v);
-        s = new Point(5, 5, 5);
-        System.out.println("Split @ " + s + ":");
-        vols = v.split(s);
-        for (int i = 0; i < vols.length; i++)
-            System.out.println(" i=" + i + ": " + vols[i]);
-        
+    private static void printGate(org.bennedum.transporter.GateMap gm, int x, int y, int z) {
+        LocalGateImpl gate = gm.getGate(new Location(null, x, y, z));
+        System.out.println(" (" + x + "," + y + "," + z + "): " + ((gate == null) ? "none" : gate.getName()));
     }
     
-    /*
     private static void benchmark() {
-        int numGates = 1000;
-        OldGateMap ogm = new OldGateMap();
-        org.bennedum.transporter.GateMap gm = new org.bennedum.transporter.GateMap();
+        int numGates = 10000;
+        List<TestGate> gates = new ArrayList<TestGate>(numGates);
+        List<Volume> volumes = new ArrayList<Volume>(numGates);
         for (int i = 0; i < numGates; i++) {
-            if ((i % (numGates / 100)) == 0)
-                System.out.println("Gate " + i + "...");
             try {
                 TestGate gate = new TestGate(null, "Gate" + i, "tab", BlockFace.NORTH, new Random(i));
-                ogm.putAll(gate.getOldGateMap());
-                gm.put(gate.getVolume());
+                gates.add(gate);
+                volumes.add(gate.getVolume());
             } catch (GateException ge) {}
         }
-        System.out.println("Old gate map has " + ogm.size() + " locations");
-        System.out.println("New gate map has " + gm.size() + " volumes");
-        System.out.println("New gate map has " + gm.nodeCount() + " nodes");
 
-        int numTests = 100000;
-        int foundCount = 0;
-        Random r = new Random(1);
+        org.bennedum.transporter.GateMap gm = new org.bennedum.transporter.GateMap();
         long startTime = System.currentTimeMillis();
-        for (int i = 0 ; i < numTests; i++) {
-            if ((i % (numTests / 10)) == 0) System.out.print(".");
-            int x = r.nextInt(TestGate.MAX_RANGE * 2) - TestGate.MAX_RANGE;
-            int y = r.nextInt(256);
-            int z = r.nextInt(TestGate.MAX_RANGE * 2) - TestGate.MAX_RANGE;
-            LocalGateImpl gate = ogm.getGate(new Location(null, x, y, z));
-            if (gate != null)
-                foundCount++;
-        }
+        for (Volume vol : volumes)
+            gm.put(vol);
         long endTime = System.currentTimeMillis();
-
-        System.out.println();
-        System.out.println(numTests + " tests, " + foundCount + " found, " + (endTime - startTime) + "ms");
+        System.out.println("put " + gm.size() + " volumes one at a time in " + (endTime - startTime) + "ms");
         
-        foundCount = 0;
-        r = new Random(1);
+        gm = new org.bennedum.transporter.GateMap();
+        startTime = System.currentTimeMillis();
+        gm.startBulkLoad();
+        for (Volume vol : volumes)
+            gm.put(vol);
+        gm.finishBulkLoad();
+        endTime = System.currentTimeMillis();
+        System.out.println("bulk loaded " + gm.size() + " volumes into " + gm.chunkCount() + " chunks in " + (endTime - startTime) + "ms");
+
+        int numTests = 1000000;
+        int foundCount = 0;
+        Random r = new Random(1);
         startTime = System.currentTimeMillis();
         for (int i = 0 ; i < numTests; i++) {
-            if ((i % (numTests / 10)) == 0) System.out.print(".");
             int x = r.nextInt(TestGate.MAX_RANGE * 2) - TestGate.MAX_RANGE;
             int y = r.nextInt(256);
             int z = r.nextInt(TestGate.MAX_RANGE * 2) - TestGate.MAX_RANGE;
@@ -142,10 +114,13 @@ public class GateMap {
                 foundCount++;
         }
         endTime = System.currentTimeMillis();
-        
-        System.out.println();
-        System.out.println(numTests + " tests, " + foundCount + " found, " + (endTime - startTime) + "ms");
-        
+        System.out.println(numTests + " lookups, " + foundCount + " found, " + (endTime - startTime) + "ms");
+
+        startTime = System.currentTimeMillis();
+        for (TestGate gate : gates)
+            gm.removeGate(gate);
+        endTime = System.currentTimeMillis();
+        System.out.println("removed " + gates.size() + " gates in " + (endTime - startTime) + "ms, " + gm.size() + " volumes left");
     }
-    */
+    
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bennedum.transporter.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public class Message {
+
+    public static void main(String[] args) {
+        benchmark();
+    }
+
+    // Decodes refreshData-like messages of doubling size. Time per MB should
+    // stay roughly flat as the message grows.
+    private static void benchmark() {
+        for (int items = 1000; items <= 64000; items *= 2) {
+            org.bennedum.transporter.net.Message m = createRefreshData(items);
+            String encoded = m.encode();
+            byte[] binary = m.encodeBinary();
+
+            int rounds = Math.max(1, 64000 / items);
+            org.bennedum.transporter.net.Message.decode(encoded);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                org.bennedum.transporter.net.Message.decode(encoded);
+            long textTime = (System.nanoTime() - startTime) / rounds;
+
+            org.bennedum.transporter.net.Message.decodeBinary(binary);
+            startTime = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                org.bennedum.transporter.net.Message.decodeBinary(binary);
+            long binaryTime = (System.nanoTime() - startTime) / rounds;
+
+            System.out.println(String.format("%6d items: text %8d bytes %7.2fms (%6.2fms/MB), binary %8d bytes %7.2fms (%6.2fms/MB)",
+                    items,
+                    encoded.length(), textTime / 1e6, textTime / 1e6 / (encoded.length() / 1048576.0),
+                    binary.length, binaryTime / 1e6, binaryTime / 1e6 / (binary.length / 1048576.0)));
+        }
+    }
+
+    private static org.bennedum.transporter.net.Message createRefreshData(int items) {
+        org.bennedum.transporter.net.Message out = new org.bennedum.transporter.net.Message();
+        out.put("command", "refreshData");
+        out.put("publicAddress", "mc.example.com:25565");
+        List<String> worlds = new ArrayList<String>();
+        worlds.add("world");
+        worlds.add("world_nether");
+        out.put("worlds", worlds);
+        List<org.bennedum.transporter.net.Message> players = new ArrayList<org.bennedum.transporter.net.Message>();
+        List<org.bennedum.transporter.net.Message> gates = new ArrayList<org.bennedum.transporter.net.Message>();
+        for (int i = 0; i < items; i++) {
+            org.bennedum.transporter.net.Message msg = new org.bennedum.transporter.net.Message();
+            msg.put("name", "Player" + i);
+            msg.put("displayName", "The Player #" + i);
+            msg.put("worldName", "world");
+            players.add(msg);
+            org.bennedum.transporter.net.Message gm = new org.bennedum.transporter.net.Message();
+            gm.put("type", "BLOCK");
+            gm.put("name", "world.Gate" + i);
+            gates.add(gm);
+        }
+        out.put("players", players);
+        out.put("gates", gates);
+        return out;
+    }
+
+}